@@ -0,0 +1,43 @@
+package minesweeper.server;
+
+/*
+ * Boards the benchmarks play on, generated from fixed seeds so every run measures the same boards.
+ */
+import java.util.Random;
+
+class BenchmarkBoards {
+    /**
+     * @param len length of each side of board
+     * @param density chance that a square has a bomb
+     * @param seed for the bombs
+     * @return board file contents, following the grammar in MinesweeperServer.main
+     */
+    static String boardFile(int len, double density, long seed) {
+        boolean[] bombs = bombs(len, density, seed);
+        StringBuilder result = new StringBuilder(2*len*len);
+        for (int i=0; i<len; i++) {
+            for (int j=0; j<len; j++) {
+                if (j > 0)
+                    result.append(' ');
+                result.append(bombs[i*len+j] ? '1' : '0');
+            }
+            result.append('\n');
+        }
+        return result.toString();
+    }
+
+    /**
+     * @param len length of each side of board
+     * @param density chance that a square has a bomb
+     * @param seed for the bombs
+     * @return bombs of the board boardFile makes from the same arguments, in row-major order
+     */
+    static boolean[] bombs(int len, double density, long seed) {
+        Random random = new Random(seed);
+        boolean[] bombs = new boolean[len*len];
+        for (int i=0; i<bombs.length; i++) {
+            bombs[i] = random.nextDouble() < density;
+        }
+        return bombs;
+    }
+}
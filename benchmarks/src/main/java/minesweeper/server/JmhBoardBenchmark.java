@@ -0,0 +1,209 @@
+package minesweeper.server;
+
+/*
+ * JMH benchmarks for Board. Boards are generated with fixed seeds (see BenchmarkBoards), so every run measures the
+ * same boards.
+ *
+ * Benchmarks that need a fresh board for every operation build it in a setup of Level.Invocation, which JMH leaves
+ * out of the score; a flood fill or ten thousand digs take long enough for that to be accurate.
+ */
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JmhBoardBenchmark {
+    private static final long SEED = 42;
+    /** Digs per operation of digSmall. */
+    private static final int SMALL_DIGS = 10000;
+
+    /**
+     * A board file of each size, as text and on disk
+     */
+    @State(Scope.Benchmark)
+    public static class Files {
+        @Param({ "100", "1000" })
+        int size;
+        String text;
+        File file;
+
+        @Setup
+        public void setup() throws IOException {
+            text = BenchmarkBoards.boardFile(size, 0.25, SEED);
+            file = File.createTempFile("board", ".txt");
+            Writer out = new FileWriter(file);
+            try {
+                out.write(text);
+            } finally {
+                out.close();
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    public Board constructRandom(Files files) {
+        return new Board(files.size, SEED, 0.25);
+    }
+
+    @Benchmark
+    public Board constructFromFile(Files files) {
+        return new Board(files.text);
+    }
+
+    @Benchmark
+    public Board constructFromMappedFile(Files files) throws IOException {
+        return new Board(files.file);
+    }
+
+    /**
+     * A fresh 1000x1000 board for every operation, and squares next to a bomb on it, so each dig reveals only itself
+     */
+    @State(Scope.Thread)
+    public static class SmallDigs {
+        final int size = 1000;
+        String file;
+        int[] squares;
+        Board board;
+
+        @Setup(Level.Trial)
+        public void find() {
+            file = BenchmarkBoards.boardFile(size, 0.25, SEED);
+            boolean[] bombs = BenchmarkBoards.bombs(size, 0.25, SEED);
+            List<Integer> found = new ArrayList<Integer>();
+            for (int x=1; x<size-1 && found.size()<SMALL_DIGS; x++) {
+                for (int y=1; y<size-1 && found.size()<SMALL_DIGS; y++) {
+                    boolean nextToBomb = false;
+                    for (int i=x-1; i<=x+1; i++) {
+                        for (int j=y-1; j<=y+1; j++) {
+                            nextToBomb |= bombs[i*size+j];
+                        }
+                    }
+                    if (!bombs[x*size+y] && nextToBomb)
+                        found.add(x*size+y);
+                }
+            }
+            squares = new int[found.size()];
+            for (int i=0; i<squares.length; i++) {
+                squares[i] = found.get(i);
+            }
+        }
+
+        @Setup(Level.Invocation)
+        public void build() {
+            board = new Board(file);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SMALL_DIGS)
+    public Object digSmall(SmallDigs state) {
+        Object last = null;
+        for (int square : state.squares) {
+            last = state.board.digDelta(square / state.size, square % state.size);
+        }
+        return last;
+    }
+
+    /**
+     * A fresh board with no bombs for every operation, so one dig reveals every square
+     */
+    @State(Scope.Thread)
+    public static class Flood {
+        @Param({ "100", "1000" })
+        int size;
+        String file;
+        Board board;
+
+        @Setup(Level.Trial)
+        public void generate() {
+            file = BenchmarkBoards.boardFile(size, 0, SEED);
+        }
+
+        @Setup(Level.Invocation)
+        public void build() {
+            board = new Board(file);
+        }
+    }
+
+    @Benchmark
+    public String digFlood(Flood state) {
+        return state.board.dig(state.size/2, state.size/2);
+    }
+
+    /**
+     * One 1000x1000 board, kept across operations
+     */
+    @State(Scope.Thread)
+    public static class Flags {
+        Board board;
+        int i = 0;
+
+        @Setup
+        public void setup() {
+            board = new Board(BenchmarkBoards.boardFile(1000, 0.25, SEED));
+        }
+    }
+
+    @Benchmark
+    public String flagDeflag(Flags state) {
+        int x = (state.i * 7919) % 1000;
+        String result = (state.i & 1) == 0 ? state.board.flagDelta(x, x) : state.board.deflagDelta(x, x);
+        state.i++;
+        return result;
+    }
+
+    /**
+     * A board with a dig in its middle, kept across looks
+     */
+    @State(Scope.Benchmark)
+    public static class Looks {
+        @Param({ "10", "100", "1000" })
+        int size;
+        Board board;
+
+        @Setup
+        public void setup() {
+            board = new Board(BenchmarkBoards.boardFile(size, 0.25, SEED));
+            board.dig(size/2, size/2);
+        }
+    }
+
+    @Benchmark
+    public String look(Looks state) {
+        return state.board.look();
+    }
+
+    @Benchmark
+    public String lookViewport(Looks state) {
+        int size = state.size;
+        return state.board.look(Math.max(size/2 - 20, 0), Math.max(size/2 - 40, 0), 80, 40);
+    }
+}
@@ -0,0 +1,99 @@
+package minesweeper.server;
+
+/*
+ * JMH benchmarks for the request path of MinesweeperServer and for moves contending on one board. contendedFlag runs
+ * on 4 threads unless JMH's -t option says otherwise.
+ */
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JmhRequestBenchmark {
+    private static final long SEED = 42;
+
+    @State(Scope.Thread)
+    public static class Parse {
+        final Command command = new Command();
+        final byte[] line = "deflag 123 456".getBytes();
+    }
+
+    @Benchmark
+    public Command parseRequest(Parse state) {
+        return state.command.parse(state.line, 0, state.line.length);
+    }
+
+    /**
+     * A delta session on a 100x100 board of its own
+     */
+    @State(Scope.Thread)
+    public static class Requests {
+        Session session;
+        int i = 0;
+
+        @Setup
+        public void setup() {
+            session = new Session(new Room("bench", new Board(BenchmarkBoards.boardFile(100, 0.25, SEED)), null));
+            session.setDelta(true);
+        }
+    }
+
+    @Benchmark
+    public String handleRequest(Requests state) {
+        return MinesweeperServer.handleRequest((state.i++ & 1) == 0 ? "flag 3 4" : "deflag 3 4", state.session);
+    }
+
+    /**
+     * One 1000x1000 board shared by every thread
+     */
+    @State(Scope.Benchmark)
+    public static class Shared {
+        Board board;
+
+        @Setup
+        public void setup() {
+            board = new Board(BenchmarkBoards.boardFile(1000, 0.25, SEED));
+        }
+    }
+
+    /**
+     * Each thread's own sequence of squares
+     */
+    @State(Scope.Thread)
+    public static class Squares {
+        SplittableRandom random;
+
+        @Setup
+        public void setup(ThreadParams thread) {
+            random = new SplittableRandom(SEED + thread.getThreadIndex());
+        }
+    }
+
+    /**
+     * Flags and deflags a random square; every thread picks its own squares, spread over the shared board
+     */
+    @Benchmark
+    @Threads(4)
+    public String contendedFlag(Shared shared, Squares squares) {
+        int x = squares.random.nextInt(1000);
+        int y = squares.random.nextInt(1000);
+        shared.board.flagDelta(x, y);
+        return shared.board.deflagDelta(x, y);
+    }
+}
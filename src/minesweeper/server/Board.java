@@ -1,40 +1,380 @@
 package minesweeper.server;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.Deflater;
+
 /*
- * This board is threadsafe because all methods that mutate the board are either private methods or synchronized. Per 
- * the lecture notes, if all public mutator methods are synchronized, then we are thread-safe because mutliple calls 
- * cannot be mutating the board at the same time. So we are guranteed that at any one time, only one thread is mutating
- * the board, and the thread will not release the lock until it returns from the public method that was originally called.
- * We do not need to synchronize the private methdods because they will only 
- * be called by the public methods. And since those public methods are synchronized, the private methods will only be 
- * called by one thread at a time. In addition, the board object is private, meaning that it cannot be accessed by any 
- * outside classes or methods, guranteeing that any mutations will only occur from our synchroniezd methods. 
- * Of course, this is slightly inefficient because this implementation basically allows
- * only one thread to access the entire board at a time.
+ * This board is threadsafe because every access to the squares happens while holding locks that keep any other
+ * thread from touching the same squares. Instead of one monitor for the whole board, the board is cut into
+ * TILE*TILE tiles and each tile is guarded by one of STRIPES locks (several tiles may share a stripe). On top of
+ * the stripes sits boardLock, a read/write lock:
+ * 
+ * - flag, deflag, getCell, window looks (look(x, y, w, h)) and digs that do not flood fill hold the read side of
+ *   boardLock plus the stripes of every tile they touch. A dig reads and writes squares up to 2 away from (x,y), since digging a bomb recounts the
+ *   neighbors and each recount reads the neighbors' neighbors, so it locks every tile within 2 squares.
+ *   Two such moves on different parts of the board run in parallel.
+ * - digs that flood fill, and whole-board reads (look, toString) that find the shared board message out of date,
+ *   hold the write side of boardLock, which keeps every other move out. A flood fill can spread anywhere, so it
+ *   escalates to the whole board. Looks at an up-to-date message take no lock at all (see cached).
+ * 
+ * Stripes are always taken after the read side of boardLock and in increasing stripe order, so no two threads can
+ * wait for each other in a cycle. Whether a dig floods depends on the squares around it, so dig guesses from an
+ * unlocked read (single bytes are never torn) and checks again once it holds the stripes. If the guess was wrong
+ * it releases them and redoes the dig under the write lock. Nothing has been changed at that point, so each move
+ * still takes effect atomically at one point in time.
  * 
  *  Also, constructors do not need to be synchronized because we are not leaking any references, as explained during lecture.
  */
 
 public class Board {
     
-    private Cell[][] board;
+    /*
+     * Squares are packed one byte each in row-major order, so square (x,y) lives at cells[x*length+y].
+     * bit 0 is the bomb bit, bits 1-2 hold the status and bits 3-6 hold the neighbor bomb count.
+     * Cell is only used as a read-only view of a square (see getCell).
+     * 
+     * render holds the board message already encoded, two bytes per square: the square's symbol followed by
+     * either a space or, at the end of a row, a newline. Every write to cells goes through setCell, which patches
+     * the square's symbol in place, so toString only has to copy the buffer instead of rebuilding the message.
+     * 
+     * version counts the moves that visibly changed the board. Each move carries a Move in which setCell counts,
+     * and if asked records, the squares whose symbol changed; the delta messages are built from it.
+     * Each move writes a square's symbol at most once, so the recorded squares are distinct.
+     * 
+     * A lazy board (see lazy) has no cells and no render buffer. Its squares live in TILE*TILE chunks, one per
+     * lock tile, that are created the first time a move reads or writes one of their squares, with bombs drawn
+     * from a generator seeded by the board seed and the chunk, so the same seed always gives the same board no
+     * matter which chunks are touched first. A chunk nobody has touched takes no memory beyond its slot in its
+     * row of chunks, and a row with no touched chunk no memory beyond its slot in chunks. Two threads may create
+     * the same chunk or row at once (the unlocked guess in digSquare reads squares), so both are published with
+     * compareAndSet and the loser uses the winner's. Moves go through get and put, so they, flood fills and counts
+     * cross chunk borders without noticing them. Reads that are not moves (looks, getCell) go through peek and
+     * peekSquare instead and never create a chunk, so a client cannot take memory by looking around.
+     * 
+     * cached is the board message of one version, text and bytes, shared by every look until the version
+     * changes. It is built when no move is half done, so it is exactly the board at its version. A look that finds
+     * it still at the current version returns it without taking any lock: a move that has started but not bumped
+     * the version yet has not finished, so answering with the board before it is still correct. A look that finds
+     * it out of date copies render under the read lock, alongside the moves holding stripes, and keeps the copy if
+     * no move started or was still running while it copied (see snapshot); only if one was does it wait for the
+     * write lock. Moves that hold the write lock for long publish the message first if looks have been asking for
+     * it (see publish), so those looks do not wait for a flood fill.
+     */
+    private static final int BOMB = 0x01;
+    private static final int STATUS_MASK = 0x06;
+    private static final int UNTOUCHED = 0x00;
+    private static final int FLAG = 0x02;
+    private static final int DUG = 0x04;
+    private static final int COUNT_SHIFT = 3;
+    private static final int COUNT_MASK = 0x0f << COUNT_SHIFT;
+    
+    /** Kinds of move in a batch. */
+    public static final int MOVE_DIG = 0;
+    public static final int MOVE_FLAG = 1;
+    public static final int MOVE_DEFLAG = 2;
+    
+    /** Encodings a connection may ask its answers in, see rle and encode. */
+    public static final int PLAIN = 0;
+    public static final int RLE = 1;
+    public static final int DEFLATE = 2;
+    
+    /** Density of bombs random boards are drawn with unless told otherwise. */
+    static final double DEFAULT_DENSITY = 0.25;
+    private static final int TILE = 64;
+    private static final int STRIPES = 256;
+    /**
+     * Flood fills whose stack of squares to visit grows past this many entries go parallel, see Flood. The default
+     * of 0 keeps them on one thread: splitting them was slower in the digFlood benchmark.
+     */
+    private static final int PARALLEL_FLOOD = Integer.getInteger("minesweeper.parallelFlood", 0);
+    /** Lets a flood fill claim a square with compareAndSet when several threads fill at once. */
+    private static final VarHandle SQUARES = MethodHandles.arrayElementVarHandle(byte[].class);
+    /** Smallest answer sent deflated to a connection that asked for DEFLATE. */
+    private static final int DEFLATE_MIN = 1024;
+    /** Largest board message a lazy board builds, in bytes. */
+    private static final long MAX_MESSAGE = 1L << 30;
+    /** Answer to a look at more than MAX_MESSAGE bytes of board. */
+    private static final String TOO_LARGE = "Board too large to look at, look at part of it with look X Y W H\n";
+    
+    private byte[] cells;
+    private byte[] render;
+    /**
+     * Dug squares in each TILE*TILE tile of an eager board, so a new HintSolver only reads the tiles players have
+     * dug into; null on a lazy board, whose untouched chunks were never created.
+     */
+    private AtomicIntegerArray dugTiles;
     private int length;
+    // Lazy boards only
+    /** Rows of chunks, each created with its first chunk, so a huge board starts with one slot per row. */
+    private AtomicReferenceArray<AtomicReferenceArray<byte[]>> chunks;
+    private int chunksPerSide;
+    // Random boards only
+    private long seed;
+    /** Probability each square was drawn with a bomb, or -1 for a board read from a file or a snapshot. */
+    private double density = -1;
+    private final AtomicLong version = new AtomicLong();
+    /** Where moves that change the board are journaled, or null; set before the board is shared. */
+    private volatile MoveJournal journal;
+    /** Guards creating and dropping feed. */
+    private final Object feedLock = new Object();
+    /** Where moves that change the board are pushed to subscribers, or null while nobody is subscribed. */
+    private volatile BoardFeed feed;
+    /** Answers hint requests, or null until somebody asks for a hint; created under the write lock. */
+    private volatile HintSolver solver;
+    /** Serializes hints, see HintSolver. Taken before boardLock. */
+    private final Object hintLock = new Object();
+    private final ReentrantReadWriteLock boardLock = new ReentrantReadWriteLock();
+    private volatile Message cached;
+    /** Moves started and ended, see snapshot and view. */
+    private final AtomicLong movesStarted = new AtomicLong();
+    private final AtomicLong movesEnded = new AtomicLong();
+    /** True if somebody looked at the board since the last publish. */
+    private volatile boolean looked;
+    /** Stack size past which flood fills go parallel, or 0 to always fill on one thread. */
+    private int parallelFlood = PARALLEL_FLOOD;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
     
     /**
-     * Constructor for random board
+     * The board message of one version, encoded once and shared by every connection that looks at that version.
+     * Besides the message itself it holds the other forms a connection may ask for (with its version line, run-length
+     * encoded, or both), each made on first use and kept with its bytes and, once asked for, its deflate frame.
+     */
+    private static final class Message {
+        private static final int TEXT = 0;
+        private static final int VERSIONED = 1;
+        private static final int RLE_TEXT = 2;
+        private static final int VERSIONED_RLE = 3;
+        final long version;
+        private final AtomicReferenceArray<Form> forms = new AtomicReferenceArray<Form>(4);
+        
+        Message(long version, String text) {
+            this.version = version;
+            this.forms.set(TEXT, new Form(text));
+        }
+        
+        String text() {
+            return this.forms.get(TEXT).text;
+        }
+        
+        /**
+         * @param kind TEXT, VERSIONED, RLE_TEXT or VERSIONED_RLE
+         * @return the message in that form
+         */
+        Form form(int kind) {
+            Form form = this.forms.get(kind);
+            if (form != null)
+                return form;
+            String text;
+            if (kind == VERSIONED)
+                text = "version " + this.version + "\n" + text();
+            else if (kind == RLE_TEXT)
+                text = rle0(text());
+            else
+                text = "version " + this.version + "\n" + form(RLE_TEXT).text;
+            // Two threads may both build it; the first one stored is the one everybody uses
+            this.forms.compareAndSet(kind, null, new Form(text));
+            return this.forms.get(kind);
+        }
+        
+        /**
+         * @param message a String returned by form(kind).text
+         * @return kind of the form whose text is message, or -1 if message is not one of them
+         */
+        int find(String message) {
+            for (int kind=0; kind<this.forms.length(); kind++) {
+                Form form = this.forms.get(kind);
+                if (form != null && form.text == message)
+                    return kind;
+            }
+            return -1;
+        }
+    }
+    
+    /**
+     * One form of a shared board message: its text, that text in US-ASCII, and its deflate frame
+     */
+    private static final class Form {
+        final String text;
+        final byte[] bytes;
+        private volatile byte[] deflated;
+        
+        Form(String text) {
+            this.text = text;
+            this.bytes = text.getBytes(StandardCharsets.US_ASCII);
+        }
+        
+        byte[] deflated() {
+            byte[] result = this.deflated;
+            if (result == null) {
+                result = deflate(this.bytes);
+                this.deflated = result;
+            }
+            return result;
+        }
+    }
+    
+    /**
+     * Squares changed by one move
+     */
+    private static class Move {
+        /** True if the changed squares should be kept for a delta message or the feed, not just counted. */
+        boolean record;
+        /** Changed squares as x*length+y. */
+        long[] changed;
+        byte[] symbols;
+        int count;
+        /** count when the current move started; a batch runs several moves with one Move. */
+        int mark;
+        boolean bomb;
+        long version;
+        
+        Move(boolean record) {
+            this.record = record;
+            this.changed = record ? new long[16] : null;
+            this.symbols = record ? new byte[16] : null;
+        }
+        
+        /**
+         * Keeps a changed square; only called if record is set
+         * @param square x*length+y
+         * @param symbol the square's new symbol
+         */
+        void add(long square, byte symbol) {
+            if (count == changed.length) {
+                changed = Arrays.copyOf(changed, 2*count);
+                symbols = Arrays.copyOf(symbols, 2*count);
+            }
+            changed[count] = square;
+            symbols[count] = symbol;
+            count++;
+        }
+        
+        /**
+         * Starts keeping the changed squares part way through, for the feed. Only changes from now on are kept;
+         * the slots of earlier ones are left empty.
+         */
+        void startRecording() {
+            this.record = true;
+            this.changed = new long[Math.max(16, 2*count)];
+            this.symbols = new byte[this.changed.length];
+        }
+    }
+    
+    /**
+     * Constructor for random board, with a quarter of the squares holding bombs
      * @param length of each side of board
      * @return none
      */
     public Board(int len) {
-        this.length = len;
-        this.board = new Cell[len][len];
-        for (int i=0; i<len; i++) {
-            for (int j=0; j<len; j++) {
-                board[i][j] = new Cell();
+        this(len, new SplittableRandom().nextLong(), DEFAULT_DENSITY);
+    }
+    
+    /**
+     * Constructor for seeded random board. The bombs are drawn a TILE*TILE chunk at a time, each chunk from its
+     * own generator seeded by seed and the chunk's position, so chunks are generated in parallel on large boards
+     * and the same seed and density always give the same board, the same one lazy gives.
+     * @param length of each side of board
+     * @param seed seed the bombs are drawn from
+     * @param density probability of each square holding a bomb
+     */
+    public Board(int length, long seed, double density) {
+        this.length = length;
+        this.seed = seed;
+        this.density = density;
+        this.chunksPerSide = (length + TILE - 1) / TILE;
+        this.cells = new byte[length*length];
+        new Generator(this, 0, this.chunksPerSide * this.chunksPerSide).invoke();
+        initRender();
+    }
+    
+    /**
+     * Fills the cells of a seeded random board with the bombs of a range of chunks, splitting the range in two
+     * and filling the halves in parallel while it is large
+     */
+    private static class Generator extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        /** Most chunks filled without splitting. */
+        private static final int BATCH = 16;
+        private final Board board;
+        private final int from;
+        private final int to;
+        
+        /**
+         * @param board board being constructed
+         * @param from first chunk, numbered row by row
+         * @param to chunk after the last
+         */
+        Generator(Board board, int from, int to) {
+            this.board = board;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from > BATCH) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Generator(board, from, middle), new Generator(board, middle, to));
+                return;
+            }
+            int length = board.length;
+            for (int id=from; id<to; id++) {
+                int cx = id / board.chunksPerSide;
+                int cy = id % board.chunksPerSide;
+                byte[] chunk = generate(board.seed, board.density, cx, cy);
+                int rows = Math.min(TILE, length - cx*TILE);
+                int columns = Math.min(TILE, length - cy*TILE);
+                for (int i=0; i<rows; i++) {
+                    System.arraycopy(chunk, i*TILE, board.cells, (cx*TILE + i)*length + cy*TILE, columns);
+                }
             }
         }
     }
     
+    /**
+     * Makes a lazy board, whose squares are only created when moves first reach them, so boards far too big
+     * to keep in memory can be played as long as players only explore part of them. Its board message is
+     * built on demand rather than kept up to date. It has the same bombs as new Board(length, seed, density).
+     * @param length of each side of board
+     * @param seed seed the bombs are drawn from; the same seed and density always give the same board
+     * @param density probability of each square holding a bomb
+     * @return the board
+     */
+    public static Board lazy(int length, long seed, double density) {
+        return new Board(length, seed, density, true);
+    }
+    
+    /**
+     * Constructor for lazy boards, see lazy
+     */
+    private Board(int length, long seed, double density, boolean lazy) {
+        this.length = length;
+        this.seed = seed;
+        this.density = density;
+        this.chunksPerSide = (length + TILE - 1) / TILE;
+        this.chunks = new AtomicReferenceArray<AtomicReferenceArray<byte[]>>(chunksPerSide);
+        initRender();
+    }
+    
     /**
      * Constructor for preset board
      * @param string representation of the input file
@@ -49,7 +389,7 @@ public class Board {
                 this.length = values.length;
                 if (lines.length != this.length)
                     throw new RuntimeException("Invalid input file: # of values != # of lines");
-                this.board = new Cell[this.length][this.length];         
+                this.cells = new byte[this.length*this.length];
             }
             else {
                 if (values.length != this.length)
@@ -58,9 +398,218 @@ public class Board {
             for (int j = 0; j<values.length; j++) {
                 if (!values[j].equals("0") && !values[j].equals("1"))
                     throw new RuntimeException("Invalid input file: values must be 0 or 1");
-                board[i][j] = new Cell(Integer.parseInt(values[j]));
+                if (values[j].equals("1"))
+                    cells[i*this.length+j] = BOMB;
             }
         }
+        initRender();
+    }
+    
+    /**
+     * Constructor for a board restored from a snapshot, see BoardSnapshot
+     * @param length of each side of board
+     * @param cells packed squares, length*length of them; kept by the board
+     * @param version version the board had when the snapshot was taken
+     * @throws IllegalArgumentException if a square is not a valid packed square
+     */
+    Board(int length, byte[] cells, long version) {
+        for (int i=0; i<cells.length; i++) {
+            int packed = cells[i];
+            int count = (packed & COUNT_MASK) >> COUNT_SHIFT;
+            if ((packed & ~(BOMB | STATUS_MASK | COUNT_MASK)) != 0 || (packed & STATUS_MASK) == STATUS_MASK
+                    || count > 8)
+                throw new IllegalArgumentException("invalid square " + (i / length) + "," + (i % length));
+        }
+        this.length = length;
+        this.cells = cells;
+        this.version.set(version);
+        initRender();
+        for (int i=0; i<cells.length; i++) {
+            render[2*i] = (byte) symbol(cells[i]);
+            if ((cells[i] & STATUS_MASK) == DUG)
+                countDug(i / length, i % length, 1);
+        }
+    }
+    
+    /**
+     * Constructor for a board stored in a file, following the grammar in MinesweeperServer.main. Accepts exactly
+     * the files that new Board(MinesweeperServer.readContent(file)) accepts and throws the same errors for the others,
+     * but reads the file through a memory map straight into the squares instead of building Strings, so a board
+     * with hundreds of millions of squares loads in one pass with no garbage.
+     * @param file board file
+     * @throws IOException if the file cannot be read
+     */
+    public Board(File file) throws IOException {
+        FileLoader loader = new FileLoader();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            loader.size = size;
+            for (long position = 0; position < size; position += FileLoader.CHUNK) {
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(FileLoader.CHUNK, size - position));
+                loader.parse(chunk);
+            }
+        }
+        loader.finish();
+        this.length = loader.length;
+        this.cells = loader.cells;
+        initRender();
+    }
+    
+    /**
+     * Parser for Board(File). Reproduces what readContent and Board(String) do to a file: lines end at "\n", "\r"
+     * or "\r\n", empty lines at the end of the file are ignored, and a line's values are what String.split(" ")
+     * returns for it. Board(String) checks the number of lines before anything else, so the first error in the
+     * lines is only remembered, and thrown at the end if the number of lines is right.
+     */
+    private static class FileLoader {
+        /** Most bytes mapped at once. */
+        static final long CHUNK = 1 << 30;
+        
+        long size;
+        int length = -1;
+        byte[] cells;
+        /** First line's bombs, kept until its length, and so the size of cells, is known. */
+        byte[] firstRow = new byte[64];
+        /** Lines ended so far, not counting empty lines that may turn out to be at the end of the file. */
+        int lines;
+        int emptyLines;
+        String error;
+        // State of the current line
+        boolean lineStarted;
+        /** Index of the next value. */
+        int column;
+        /** Empty values since the last non-empty one, which split drops if they end the line. */
+        int emptyValues;
+        boolean badValue;
+        int valueLength;
+        byte valueByte;
+        boolean afterCR;
+        
+        void parse(MappedByteBuffer chunk) {
+            int limit = chunk.limit();
+            for (int i=0; i<limit; i++) {
+                byte b = chunk.get(i);
+                if (b == '\n' && afterCR) {
+                    afterCR = false;
+                    continue;
+                }
+                afterCR = b == '\r';
+                if (b == '\n' || b == '\r') {
+                    endLine();
+                } else if (b == ' ') {
+                    lineStarted = true;
+                    endValue();
+                } else {
+                    lineStarted = true;
+                    if (valueLength++ == 0)
+                        valueByte = b;
+                }
+            }
+        }
+        
+        void endValue() {
+            if (valueLength == 0) {
+                emptyValues++;
+                return;
+            }
+            if (emptyValues > 0) {
+                badValue = true;
+                column += emptyValues;
+                emptyValues = 0;
+            }
+            if (valueLength != 1 || (valueByte != '0' && valueByte != '1'))
+                badValue = true;
+            else if (valueByte == '1')
+                setBomb(column);
+            column++;
+            valueLength = 0;
+        }
+        
+        void setBomb(int column) {
+            if (lines == 0) {
+                if (column >= firstRow.length)
+                    firstRow = Arrays.copyOf(firstRow, Math.max(2*firstRow.length, column+1));
+                firstRow[column] = BOMB;
+            } else if (cells != null && lines < length && column < length) {
+                cells[lines*length+column] = BOMB;
+            }
+        }
+        
+        void endLine() {
+            if (!lineStarted) {
+                // Only counts if a non-empty line follows
+                emptyLines++;
+                return;
+            }
+            endValue();
+            int values = column;
+            boolean bad = badValue;
+            column = 0;
+            emptyValues = 0;
+            badValue = false;
+            lineStarted = false;
+            // Empty lines in the middle of the file have one empty value
+            for (; emptyLines > 0; emptyLines--) {
+                endLine(1, true);
+            }
+            endLine(values, bad);
+        }
+        
+        void endLine(int values, boolean bad) {
+            if (lines == 0) {
+                length = values;
+                // Every line of a valid file takes at least 2*length-1 bytes, so if the file is too small for
+                // that, it fails the line count and nothing needs to be stored
+                if ((long) length * (2L*length - 1) <= size) {
+                    if ((long) length * length > Integer.MAX_VALUE)
+                        throw new RuntimeException("Invalid input file: board too large");
+                    cells = new byte[length*length];
+                    System.arraycopy(firstRow, 0, cells, 0, Math.min(firstRow.length, length));
+                }
+                firstRow = null;
+                if (bad)
+                    error = "Invalid input file: values must be 0 or 1";
+            } else if (error == null) {
+                if (values != length)
+                    error = "Invalid input file: inconsistent # of values per line";
+                else if (bad)
+                    error = "Invalid input file: values must be 0 or 1";
+            }
+            lines++;
+        }
+        
+        void finish() {
+            if (lineStarted)
+                endLine();
+            if (lines == 0)
+                throw new RuntimeException("Invalid input file: values must be 0 or 1");
+            if (lines != length)
+                throw new RuntimeException("Invalid input file: # of values != # of lines");
+            if (error != null)
+                throw new RuntimeException(error);
+        }
+    }
+    
+    /**
+     * Fills the render buffer with the board message of a board on which nothing has been dug or flagged,
+     * unless the board is lazy, and creates the stripe locks
+     * @param none
+     * @return none
+     */
+    private void initRender() {
+        for (int i=0; i<STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        if (this.cells == null)
+            return;
+        int tiles = (this.length + TILE - 1) / TILE;
+        this.dugTiles = new AtomicIntegerArray(tiles * tiles);
+        this.render = new byte[2*this.cells.length];
+        for (int i=0; i<this.cells.length; i++) {
+            render[2*i] = '-';
+            render[2*i+1] = (i+1) % this.length == 0 ? (byte) '\n' : (byte) ' ';
+        }
     }
     
     /**
@@ -68,71 +617,1090 @@ public class Board {
      * @param none
      * @return Board message
      */
-    public synchronized String look() {
+    public String look() {
         return toString();
     }
     
+    /**
+     * Writes a snapshot of the board, with everything dug and flagged so far, that BoardSnapshot.read restores.
+     * Moves are held up only while the squares are copied, not while the snapshot is written.
+     * @param file to write, replaced atomically
+     * @return version of the board the snapshot holds
+     * @throws IOException if the snapshot cannot be written, or the board is lazy
+     */
+    public long save(File file) throws IOException {
+        if (this.cells == null)
+            throw new IOException("Lazy boards cannot be saved as snapshots");
+        byte[] copy;
+        long version;
+        lock(boardLock.writeLock());
+        try {
+            copy = cells.clone();
+            version = this.version.get();
+        } finally {
+            boardLock.writeLock().unlock();
+        }
+        BoardSnapshot.write(file, this.length, version, copy);
+        return version;
+    }
+    
+    /**
+     * Returns the board message preceded by a "version" line, so that a client using delta messages knows
+     * which delta the board message is up to date with
+     * @param none
+     * @return "version VERSION" line followed by the board message
+     */
+    public String lookVersion() {
+        return current().form(Message.VERSIONED).text;
+    }
+    
+    /**
+     * Rewrites a board message run-length encoded, for connections that asked for RLE. Each row of squares
+     * becomes one line following the grammar
+     * 
+     * ROW :== RUN (SPACE RUN)* NEWLINE
+     * RUN :== ("-" | "F" | "." | [1-8]) COUNT?
+     * 
+     * where a RUN stands for COUNT squares in a row (one if COUNT is left out) showing that symbol, with "."
+     * standing for a blank. Other lines, such as the version line, are kept as they are. The encoding of the
+     * current board message is made once per version and shared.
+     * @param message board message, possibly preceded by its version line, or the message of a window
+     * @return the message with its rows run-length encoded
+     */
+    public String rle(String message) {
+        Message m = this.cached;
+        int kind = m == null ? -1 : m.find(message);
+        if (kind == Message.TEXT)
+            return m.form(Message.RLE_TEXT).text;
+        if (kind == Message.VERSIONED)
+            return m.form(Message.VERSIONED_RLE).text;
+        return rle0(message);
+    }
+    
+    /**
+     * Encodes an answer for sending. The board message of the current version, in each of its forms, is encoded
+     * once and its bytes are shared by every connection sending it.
+     * 
+     * With DEFLATE, answers of at least DEFLATE_MIN bytes are sent as a frame
+     * 
+     * FRAME :== "deflate" SPACE N NEWLINE BYTES
+     * 
+     * where BYTES are the N bytes of the answer compressed in the zlib format (RFC 1950). Shorter answers are sent
+     * as they are; no plain answer starts with "deflate ", so clients can tell the two apart.
+     * @param message answer to a request on this board
+     * @param encoding PLAIN, RLE or DEFLATE; RLE answers are already rewritten by rle, so they are sent as they are
+     * @return bytes to send; must not be changed
+     */
+    public byte[] encode(String message, int encoding) {
+        Message m = this.cached;
+        int kind = m == null ? -1 : m.find(message);
+        if (kind >= 0)
+            return encode(m.form(kind), encoding);
+        byte[] bytes = message.getBytes(StandardCharsets.US_ASCII);
+        if (encoding == DEFLATE && bytes.length >= DEFLATE_MIN)
+            return deflate(bytes);
+        return bytes;
+    }
+    
+    private static byte[] encode(Form form, int encoding) {
+        if (encoding == DEFLATE && form.bytes.length >= DEFLATE_MIN)
+            return form.deflated();
+        return form.bytes;
+    }
+    
+    /**
+     * Tells an engine whether a queued answer may be swapped for a later board message, see Outbox
+     * @param message answer to a request on this board
+     * @return the form of the current board message that message is, if it has no version line, otherwise -1
+     */
+    int coalescable(String message) {
+        Message m = this.cached;
+        int kind = m == null ? -1 : m.find(message);
+        return kind == Message.TEXT || kind == Message.RLE_TEXT ? kind : -1;
+    }
+    
+    /**
+     * Gives the latest board message already built, without building the current one: an Outbox calls it while
+     * holding its connection's lock, possibly on the feed's thread, where it must not wait for the board's locks.
+     * Every answer coalescable accepted was the cached message when it was answered, so the latest one is at
+     * least as recent.
+     * @param kind form returned by coalescable
+     * @param encoding PLAIN, RLE or DEFLATE
+     * @return what encode gives for that form of the latest board message built
+     */
+    byte[] encodeLatest(int kind, int encoding) {
+        return encode(this.cached.form(kind), encoding);
+    }
+    
+    /**
+     * Same as encode(message, PLAIN)
+     */
+    public byte[] encode(String message) {
+        return encode(message, PLAIN);
+    }
+    
+    /**
+     * Run-length encodes the rows of a board message, see rle
+     */
+    private static String rle0(String message) {
+        StringBuilder result = new StringBuilder();
+        int start = 0;
+        while (start < message.length()) {
+            int end = message.indexOf('\n', start);
+            if (end < 0)
+                end = message.length();
+            if (isRow(message, start, end)) {
+                for (int i=start; i<end; ) {
+                    char symbol = message.charAt(i);
+                    int run = 1;
+                    while (i + 2*run < end && message.charAt(i + 2*run) == symbol) {
+                        run++;
+                    }
+                    if (i > start)
+                        result.append(' ');
+                    result.append(symbol == ' ' ? '.' : symbol);
+                    if (run > 1)
+                        result.append(run);
+                    i += 2*run;
+                }
+            } else {
+                result.append(message, start, end);
+            }
+            if (end < message.length())
+                result.append('\n');
+            start = end + 1;
+        }
+        return result.toString();
+    }
+    
+    /**
+     * @return true if message[start..end) is a row of a board message: symbols separated by single spaces
+     */
+    private static boolean isRow(String message, int start, int end) {
+        if ((end - start) % 2 == 0)
+            return false;
+        for (int i=start; i<end; i++) {
+            char c = message.charAt(i);
+            if ((i - start) % 2 == 1 ? c != ' ' : !(c == '-' || c == 'F' || c == ' ' || (c >= '1' && c <= '8')))
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * @param bytes answer to compress
+     * @return deflate frame of the answer, see encode
+     */
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(bytes);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 8 + 64);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        byte[] header = ("deflate " + compressed.size() + "\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] frame = Arrays.copyOf(header, header.length + compressed.size());
+        System.arraycopy(compressed.toByteArray(), 0, frame, header.length, compressed.size());
+        return frame;
+    }
+    
+    /**
+     * @return the board message of the current version, built if no look has asked for it yet
+     */
+    private Message current() {
+        if (!this.looked)
+            this.looked = true;
+        Message m = this.cached;
+        if (m != null && m.version == this.version.get())
+            return m;
+        if (this.render != null) {
+            m = snapshot();
+            if (m != null)
+                return m;
+        }
+        lock(boardLock.writeLock());
+        try {
+            return currentLocked();
+        } finally {
+            boardLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Builds the board message of the current version from render without waiting for the moves that hold
+     * stripes: under the read lock, so no flood fill or batch is running, it copies render while no other move is
+     * running either, which it tells by movesStarted and movesEnded, as a sequence lock would. A move bumps
+     * movesStarted before it writes render and movesEnded once it has bumped the version, so if no move had
+     * started without ending before the copy, and none started during it, the copy is exactly the board at the
+     * version read before it.
+     * @return the message, now also in cached, or null if a move got in the way
+     */
+    private Message snapshot() {
+        if (!boardLock.readLock().tryLock())
+            return null;
+        try {
+            long ended = this.movesEnded.get();
+            long started = this.movesStarted.get();
+            long now = this.version.get();
+            if (started != ended)
+                return null;
+            String text = new String(this.render, StandardCharsets.US_ASCII);
+            // Orders the reads of render before the check that no move wrote it meanwhile
+            VarHandle.acquireFence();
+            if (this.movesStarted.get() != started)
+                return null;
+            Message m = new Message(now, text);
+            Message old = this.cached;
+            if (old == null || old.version < now)
+                this.cached = m;
+            return m;
+        } finally {
+            boardLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Publishes the board message of the current version before a move that holds the write lock for a long time
+     * (a flood fill or a batch) starts changing squares. The version does not change until the move ends, so
+     * every look meanwhile finds the message current and returns it without waiting for the move, which is
+     * correct since the move has not finished. Called with the write lock held. Only done if somebody looked at
+     * the board since the last publish, so a board nobody looks at does not copy render on every flood fill, and
+     * only for boards with a render buffer; a lazy board's message is too costly to build on every move.
+     */
+    private void publish() {
+        if (this.render != null && this.looked) {
+            this.looked = false;
+            currentLocked();
+        }
+    }
+    
+    /**
+     * Same as current, called with the write lock held
+     */
+    private Message currentLocked() {
+        Message m = this.cached;
+        long now = this.version.get();
+        if (m == null || m.version != now) {
+            m = new Message(now, message());
+            this.cached = m;
+        }
+        return m;
+    }
+    
+    /**
+     * Returns the board message of a window of the board, rows x to x+h-1 and columns y to y+w-1, cut off at
+     * the edges of the board. It has the same format as look's, and costs time and memory in proportion to the
+     * window rather than the board, so it also works on boards too large to look at whole.
+     * @param x first row of the window, 0 <= x < length
+     * @param y first column of the window, 0 <= y < length
+     * @param w number of columns, w >= 1
+     * @param h number of rows, h >= 1
+     * @return board message of the window
+     */
+    public String look(int x, int y, int w, int h) {
+        return view(x, y, w, h, false);
+    }
+    
+    /**
+     * Same as look(x, y, w, h), preceded by a line "version V" as in lookVersion. V is the version of the whole
+     * board when the window was read: if moves elsewhere were running meanwhile, the window is read again under
+     * the write lock.
+     */
+    public String lookVersion(int x, int y, int w, int h) {
+        return view(x, y, w, h, true);
+    }
+    
+    /**
+     * Builds the board message of a window, see look(int, int, int, int)
+     * @param version whether to start with the board version
+     */
+    private String view(int x, int y, int w, int h, boolean version) {
+        if (x<0 || y<0 || x>=this.length || y>=this.length || w<1 || h<1)
+            throw new IndexOutOfBoundsException("No window at " + x + "," + y + " of size " + w + "x" + h);
+        int rows = Math.min(h, this.length - x);
+        int columns = Math.min(w, this.length - y);
+        if (2L*rows*columns > MAX_MESSAGE)
+            return TOO_LARGE;
+        byte[] message = new byte[2*rows*columns];
+        long at;
+        // Every move that changes a square of the window holds one of these stripes or the write lock, so the
+        // window is read between moves; moves elsewhere on the board go on meanwhile
+        int[] held = lockRegion(x, y, x+rows-1, y+columns-1);
+        try {
+            long ended = this.movesEnded.get();
+            long started = this.movesStarted.get();
+            at = this.version.get();
+            copyWindow(message, x, y, rows, columns);
+            // A move elsewhere that was running may bump the version after the window was copied, so the version
+            // is only that of the window if no move ran, as in snapshot
+            if (!version)
+                return new String(message, StandardCharsets.US_ASCII);
+            if (started == ended && this.movesStarted.get() == started)
+                return "version " + at + "\n" + new String(message, StandardCharsets.US_ASCII);
+        } finally {
+            unlockRegion(held);
+        }
+        lock(boardLock.writeLock());
+        try {
+            at = this.version.get();
+            copyWindow(message, x, y, rows, columns);
+        } finally {
+            boardLock.writeLock().unlock();
+        }
+        return "version " + at + "\n" + new String(message, StandardCharsets.US_ASCII);
+    }
+    
+    /**
+     * Copies the board message of a window into message, with the window's squares locked
+     */
+    private void copyWindow(byte[] message, int x, int y, int rows, int columns) {
+        int pos = 0;
+        for (int i=x; i<x+rows; i++) {
+            if (this.render != null) {
+                System.arraycopy(this.render, 2*(i*this.length+y), message, pos, 2*columns);
+                pos += 2*columns;
+            } else {
+                for (int j=y; j<y+columns; j++) {
+                    message[pos++] = (byte) peek(i, j);
+                    message[pos++] = ' ';
+                }
+            }
+            message[pos-1] = '\n';
+        }
+    }
+    
+    /**
+     * @return number of moves that have changed the board so far
+     */
+    public long getVersion() {
+        return this.version.get();
+    }
+    
+    /**
+     * Returns a copy of the square at (x,y). Changing the returned cell does not change the board.
+     * @param location of cell in x & y coordinates
+     * @return Cell view of the square
+     */
+    public Cell getCell(int x, int y) {
+        if (x<0 || y<0 || x>=this.length || y>= this.length)
+            throw new IndexOutOfBoundsException("No square at " + x + "," + y);
+        int packed;
+        int[] held = lockRegion(x, y, 0);
+        try {
+            packed = this.cells != null ? get(x, y) : peekSquare(x, y);
+        } finally {
+            unlockRegion(held);
+        }
+        Cell.Type status;
+        switch (packed & STATUS_MASK) {
+        case FLAG:
+            status = Cell.Type.FLAG;
+            break;
+        case DUG:
+            status = Cell.Type.DUG;
+            break;
+        default:
+            status = Cell.Type.UNTOUCHED;
+        }
+        return new Cell((packed & BOMB) != 0, status, (packed & COUNT_MASK) >> COUNT_SHIFT);
+    }
+    
+    /**
+     * @return length of each side of board
+     */
+    public int getLength() {
+        return this.length;
+    }
+    
+    /**
+     * Identifies where the board's bombs are, so a MoveJournal can tell whether it was written for this board. An
+     * eager board hashes its bombs, so a board read from a file or a snapshot matches the random board it was saved
+     * from; a lazy board cannot read every square and hashes its seed and density instead. Only called before the
+     * board is shared, since it reads every square of an eager board without locks.
+     * @return a hash of the bombs' places
+     */
+    long fingerprint() {
+        long hash = 0xcbf29ce484222325L;
+        if (this.cells == null) {
+            hash = (hash ^ this.seed) * 0x100000001b3L;
+            return (hash ^ Double.doubleToLongBits(this.density)) * 0x100000001b3L;
+        }
+        for (byte packed : this.cells) {
+            hash = (hash ^ (packed & BOMB)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+    
+    /**
+     * @return true if the board was made by lazy, so it keeps no array of every square and cannot be saved
+     */
+    boolean isLazy() {
+        return this.cells == null;
+    }
+    
     /**
      * If x and y are invalid are if the cell (location (x,y) on board) is not untouched, return board message.
      * Oherwise, change cell state to dug. If it contains bomb, send "Boom!" message
      * "If the square x,y has no neighbor squares with bombs, then for each of x,y's 'untouched' neighbor squares, change said 
      * square to 'dug' and repeat this step (not the entire DIG procedure) recursively for said neighbor square unless said 
      * neighbor square was already dug before said change."
+     * The board message is taken after the dig, so it may also show moves other players made since.
      * @modifies the bomb count of all neighbors of the cell by subtracting one
      * @param location of cell in x & y coordinates
      * @return "Boom!" if bomb is found, board message otherwise
      */
-    public synchronized String dig(int x, int y) {
-
-        boolean bomb = false;
-        if (x<0 || y<0 || x>=this.length || y>= this.length)
-            return toString();
-        Cell currentCell = board[x][y];
-        if (currentCell.getStatus() == Cell.Type.UNTOUCHED) {
-            currentCell.setStatus(Cell.Type.DUG);
-            if (currentCell.hasBomb()) {
-                bomb = true;
-                currentCell.removeBomb();
-                updateCount(x,y);                     
-            }
-            int count = countNeighbors(x,y);  
-            if (count==0) {
-                recurseNeighbors(x,y);
-            }
-        }
-        if (bomb)
+    public String dig(int x, int y) {
+        Move move = new Move(false);
+        digSquare(x, y, move);
+        Metrics.get().recordDig(move.count);
+        if (move.bomb)
             return "BOOM!\n";
         return toString();
     }
     
+    /**
+     * Same move as dig, but answers with a delta message instead of the board message
+     * @param location of cell in x & y coordinates
+     * @return "Boom!" if bomb is found, delta message otherwise
+     */
+    public String digDelta(int x, int y) {
+        Move move = new Move(true);
+        digSquare(x, y, move);
+        Metrics.get().recordDig(move.count);
+        if (move.bomb)
+            return "BOOM!\n";
+        return delta(move);
+    }
+    
     /**
      * Flags the cell if cell is untouched and valid
      * @param location of cell in x & y coordinates
      * @return Board message
      */
-    public synchronized String flag(int x, int y) {
-        if (x<0 || y<0 || x>=this.length || y>= this.length)
-            return toString();
-        Cell currentCell = board[x][y];
-        if (currentCell.getStatus() == Cell.Type.UNTOUCHED){
-            currentCell.setStatus(Cell.Type.FLAG);
-        }
+    public String flag(int x, int y) {
+        flagSquare(x, y, new Move(false));
         return toString();
     }
     
+    /**
+     * Same move as flag, but answers with a delta message instead of the board message
+     * @param location of cell in x & y coordinates
+     * @return delta message
+     */
+    public String flagDelta(int x, int y) {
+        Move move = new Move(true);
+        flagSquare(x, y, move);
+        return delta(move);
+    }
+    
     /**
      * Deflags the cell if cell is flagged and valid
      * @param location of cell in x & y coordinates
      * @return Board message
      */
-    public synchronized String deflag(int x, int y) {
+    public String deflag(int x, int y) {
+        deflagSquare(x, y, new Move(false));
+        return toString();
+    }
+    
+    /**
+     * Same move as deflag, but answers with a delta message instead of the board message
+     * @param location of cell in x & y coordinates
+     * @return delta message
+     */
+    public String deflagDelta(int x, int y) {
+        Move move = new Move(true);
+        deflagSquare(x, y, move);
+        return delta(move);
+    }
+    
+    /**
+     * Applies many moves as one: no other move or look happens between the first and the last of them, and the
+     * board lock is taken only once for the whole batch. Moves on squares off the board change nothing.
+     * @param kinds MOVE_DIG, MOVE_FLAG or MOVE_DEFLAG for each move
+     * @param xs x coordinate of each move
+     * @param ys y coordinate of each move
+     * @param n number of moves, the first n entries of kinds, xs and ys
+     * @param stopAtBoom true to skip the moves after the first dig that finds a bomb
+     * @param delta true to answer with one delta message covering the whole batch
+     * @return "BOOM!" if any dig found a bomb, otherwise the board message or, if delta is true, a delta message
+     *         listing every square the batch changed once, with its state after the batch, in row-major order
+     */
+    public String batch(int[] kinds, int[] xs, int[] ys, int n, boolean stopAtBoom, boolean delta) {
+        Move move = new Move(delta);
+        lock(boardLock.writeLock());
+        try {
+            publish();
+            for (int i=0; i<n && !(stopAtBoom && move.bomb); i++) {
+                int x = xs[i];
+                int y = ys[i];
+                if (x<0 || y<0 || x>=this.length || y>= this.length)
+                    continue;
+                if (kinds[i] == MOVE_DIG) {
+                    int before = move.count;
+                    digLocked(x, y, move);
+                    Metrics.get().recordDig(move.count - before);
+                } else if (kinds[i] == MOVE_FLAG)
+                    flagLocked(x, y, move);
+                else
+                    deflagLocked(x, y, move);
+            }
+            move.version = this.version.get();
+            if (move.bomb)
+                return "BOOM!\n";
+            if (!delta)
+                return currentLocked().text();
+            // A square may have changed more than once; list it once, with the symbol it has now
+            long[] changed = Arrays.copyOf(move.changed, move.count);
+            Arrays.sort(changed);
+            move.count = 0;
+            for (int i=0; i<changed.length; i++) {
+                if (i > 0 && changed[i] == changed[i-1])
+                    continue;
+                move.changed[move.count] = changed[i];
+                move.symbols[move.count] = (byte) symbol(get((int) (changed[i] / this.length),
+                        (int) (changed[i] % this.length)));
+                move.count++;
+            }
+            return delta(move);
+        } finally {
+            boardLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Applies the dig move described in dig, holding only the stripes around (x,y) unless the dig floods
+     * @param location of cell in x & y coordinates
+     * @param move collects the squares the dig changes
+     */
+    private void digSquare(int x, int y, Move move) {
+        if (x<0 || y<0 || x>=this.length || y>= this.length) {
+            move.version = this.version.get();
+            return;
+        }
+        // Unlocked guess at whether the dig stays local; checked again below once the stripes are held
+        if (status(x, y) != UNTOUCHED || neighborBombs(x, y) != 0) {
+            int[] held = lockRegion(x, y, 2);
+            try {
+                if (status(x, y) != UNTOUCHED || neighborBombs(x, y) != 0) {
+                    digLocked(x, y, move);
+                    return;
+                }
+            } finally {
+                unlockRegion(held);
+            }
+        }
+        lock(boardLock.writeLock());
+        try {
+            publish();
+            digLocked(x, y, move);
+        } finally {
+            boardLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Digs (x,y) once the caller holds either the stripes within 2 squares of it, in which case the square must
+     * not flood, or the write lock
+     * @param location of cell in x & y coordinates
+     * @param move collects the squares the dig changes
+     */
+    private void digLocked(int x, int y, Move move) {
+        startMove(move);
+        if (status(x, y) == UNTOUCHED) {
+            if ((get(x, y) & BOMB) != 0) {
+                move.bomb = true;
+                setCell(x, y, get(x, y) & ~BOMB, move);
+                updateCount(x, y, move);
+            }
+            int count = countNeighbors(x, y, move);
+            setStatus(x, y, DUG, move);
+            if (count==0) {
+                recurseNeighbors(x, y, move);
+            }
+        }
+        endMove(MOVE_DIG, x, y, move);
+    }
+    
+    /**
+     * Applies the flag move described in flag
+     * @param location of cell in x & y coordinates
+     * @param move collects the squares the flag changes
+     */
+    private void flagSquare(int x, int y, Move move) {
+        if (x<0 || y<0 || x>=this.length || y>= this.length) {
+            move.version = this.version.get();
+            return;
+        }
+        int[] held = lockRegion(x, y, 0);
+        try {
+            flagLocked(x, y, move);
+        } finally {
+            unlockRegion(held);
+        }
+    }
+    
+    /**
+     * Flags (x,y) once the caller holds its stripe or the write lock
+     * @param location of a square on the board
+     * @param move collects the squares the flag changes
+     */
+    private void flagLocked(int x, int y, Move move) {
+        startMove(move);
+        if (status(x, y) == UNTOUCHED){
+            setStatus(x, y, FLAG, move);
+        }
+        endMove(MOVE_FLAG, x, y, move);
+    }
+    
+    /**
+     * Applies the deflag move described in deflag
+     * @param location of cell in x & y coordinates
+     * @param move collects the squares the deflag changes
+     */
+    private void deflagSquare(int x, int y, Move move) {
+        if (x<0 || y<0 || x>=this.length || y>= this.length) {
+            move.version = this.version.get();
+            return;
+        }
+        int[] held = lockRegion(x, y, 0);
+        try {
+            deflagLocked(x, y, move);
+        } finally {
+            unlockRegion(held);
+        }
+    }
+    
+    /**
+     * Deflags (x,y) once the caller holds its stripe or the write lock
+     * @param location of a square on the board
+     * @param move collects the squares the deflag changes
+     */
+    private void deflagLocked(int x, int y, Move move) {
+        startMove(move);
+        if (status(x, y) == FLAG){
+            setStatus(x, y, UNTOUCHED, move);
+        }
+        endMove(MOVE_DEFLAG, x, y, move);
+    }
+    
+    /**
+     * Takes the read side of boardLock and then, in increasing order, the stripes of every tile that has a square
+     * within radius squares of (x,y)
+     * @param location of cell in x & y coordinates
+     * @param radius how far from (x,y) the caller will read or write
+     * @return the stripes taken, to be passed to unlockRegion
+     */
+    private int[] lockRegion(int x, int y, int radius) {
+        return lockRegion(Math.max(x-radius, 0), Math.max(y-radius, 0),
+                Math.min(x+radius, this.length-1), Math.min(y+radius, this.length-1));
+    }
+    
+    /**
+     * Takes the read side of boardLock and then, in increasing order, the stripes of every tile that has a square
+     * in rows x1 to x2 and columns y1 to y2
+     * @return the stripes taken, to be passed to unlockRegion
+     */
+    private int[] lockRegion(int x1, int y1, int x2, int y2) {
+        int tiles = (this.length + TILE - 1) / TILE;
+        int tx1 = x1 / TILE;
+        int tx2 = x2 / TILE;
+        int ty1 = y1 / TILE;
+        int ty2 = y2 / TILE;
+        int[] held = new int[(tx2-tx1+1)*(ty2-ty1+1)];
+        int size = 0;
+        for (int i=tx1; i<=tx2; i++) {
+            for (int j=ty1; j<=ty2; j++) {
+                held[size++] = (i*tiles+j) % STRIPES;
+            }
+        }
+        Arrays.sort(held);
+        // Tiles sharing a stripe take it only once
+        int distinct = 0;
+        for (int i=0; i<size; i++) {
+            if (distinct == 0 || held[distinct-1] != held[i])
+                held[distinct++] = held[i];
+        }
+        held = Arrays.copyOf(held, distinct);
+        lock(boardLock.readLock());
+        for (int stripe : held) {
+            lock(stripes[stripe]);
+        }
+        return held;
+    }
+    
+    /**
+     * Releases what lockRegion took
+     * @param held stripes returned by lockRegion
+     */
+    private void unlockRegion(int[] held) {
+        for (int i=held.length-1; i>=0; i--) {
+            stripes[held[i]].unlock();
+        }
+        boardLock.readLock().unlock();
+    }
+    
+    /**
+     * Takes lock, timing the wait for Metrics if another thread holds it. tryLock lets a reader in ahead of a
+     * queued writer, so it is only tried while nobody is queued on boardLock; otherwise a steady stream of moves
+     * could keep a flood fill out forever.
+     * @param lock boardLock's read or write side, or a stripe
+     */
+    private void lock(Lock lock) {
+        if (!boardLock.hasQueuedThreads() && lock.tryLock())
+            return;
+        long start = System.nanoTime();
+        lock.lock();
+        Metrics.get().recordLockWait(System.nanoTime() - start);
+    }
+    
+    /**
+     * Makes a move keep its changed squares if the board has a feed or a hint solver. Called with the move's locks
+     * held, before it changes anything, so a subscriber whose snapshot was taken before the move gets all of its
+     * changes.
+     * @param move about to run
+     */
+    private void startMove(Move move) {
+        this.movesStarted.incrementAndGet();
+        if (!move.record && (this.feed != null || this.solver != null))
+            move.startRecording();
+    }
+    
+    /**
+     * Bumps the version if the move that just ran changed any square. Called while the move's locks are still
+     * held, so a whole-board read never sees a version that does not match the squares. A move that changed the
+     * board is also appended to the journal, if there is one, while its locks are held, so moves that touch the
+     * same squares are journaled in the order they ran. The squares it changed go to the feed and the hint solver,
+     * if there are any, for the same reason.
+     * @param kind MOVE_DIG, MOVE_FLAG or MOVE_DEFLAG
+     * @param location of the square the move was on
+     * @param move that just ran
+     */
+    private void endMove(int kind, int x, int y, Move move) {
+        if (move.count > move.mark) {
+            move.version = this.version.incrementAndGet();
+            if (journal != null)
+                journal.append(kind, x, y, move.version);
+            BoardFeed feed = this.feed;
+            if (feed != null && move.record)
+                feed.append(move.changed, move.symbols, move.mark, move.count, move.version);
+            HintSolver solver = this.solver;
+            if (solver != null && move.record)
+                solver.append(move.changed, move.mark, move.count);
+        } else {
+            move.version = this.version.get();
+        }
+        move.mark = move.count;
+        this.movesEnded.incrementAndGet();
+    }
+    
+    /**
+     * Subscribes to the board's changes, giving the board a feed if it has none. The caller takes its snapshot of
+     * the board after subscribing, so every change made after the snapshot reaches the subscriber.
+     * @param subscriber where the updates go
+     * @return the subscription, which holds updates back until activated
+     */
+    public BoardFeed.Subscription subscribe(BoardFeed.Subscriber subscriber) {
+        BoardFeed.Subscription subscription;
+        BoardFeed feed;
+        synchronized (feedLock) {
+            if (this.feed == null)
+                this.feed = new BoardFeed(this);
+            feed = this.feed;
+            subscription = feed.add(subscriber);
+        }
+        // A move that started before the feed was installed does not record its changes, so wait for any such move
+        // to end; it bumps the version before the caller's snapshot, which then shows its changes. Every move from
+        // this version on appends to the feed.
+        lock(boardLock.writeLock());
+        try {
+            feed.start(this.version.get());
+        } finally {
+            boardLock.writeLock().unlock();
+        }
+        return subscription;
+    }
+    
+    /**
+     * @return the board's feed, or null while nobody is subscribed
+     */
+    BoardFeed getFeed() {
+        return this.feed;
+    }
+    
+    /**
+     * Drops the board's feed if nobody is subscribed to it any more, so moves stop paying for it
+     * @param feed the feed asking to be dropped
+     */
+    void dropFeed(BoardFeed feed) {
+        synchronized (feedLock) {
+            if (this.feed == feed && feed.stopIfIdle())
+                this.feed = null;
+        }
+    }
+    
+    /**
+     * Finds a square that is provably safe to dig or, if there is none, the square least likely to hold a bomb,
+     * judging only from what players can see (see HintSolver). Only the parts of the board that changed since the
+     * last hint are solved again, and the hint of the current version is kept, so asking again costs nothing.
+     * @return "hint safe X Y", "hint guess X Y P" with P the probability of a bomb at X,Y, or "hint none" if no
+     *         untouched square is left
+     */
+    public String hint() {
+        HintSolver solver = this.solver;
+        String answer = solver == null ? null : solver.cached(this.version.get());
+        if (answer != null)
+            return answer;
+        synchronized (hintLock) {
+            HintSolver.Snapshot snapshot;
+            lock(boardLock.writeLock());
+            try {
+                if (this.solver == null)
+                    this.solver = new HintSolver(this, dugSquares(), hintDensity());
+                solver = this.solver;
+                answer = solver.cached(this.version.get());
+                if (answer != null)
+                    return answer;
+                snapshot = solver.collect(this.version.get());
+            } finally {
+                boardLock.writeLock().unlock();
+            }
+            // Enumerating only needs the snapshot, so moves go on meanwhile
+            return solver.solve(snapshot);
+        }
+    }
+    
+    /**
+     * @param location of a square on the board
+     * @return the square's symbol in the board message; the caller holds the write lock
+     */
+    char visible(int x, int y) {
+        if (this.cells == null)
+            return peek(x, y);
+        return symbol(this.cells[x*this.length+y]);
+    }
+    
+    /**
+     * @return every dug square, as x*length+y, for a new HintSolver. Only the tiles of an eager board that hold
+     *         dug squares (see dugTiles) and the created chunks of a lazy board are read, so the cost follows how
+     *         much players dug rather than the size of the board. The caller holds the write lock.
+     */
+    private long[] dugSquares() {
+        long[] dug = new long[64];
+        int n = 0;
+        int tiles = (this.length + TILE - 1) / TILE;
+        for (int tx=0; tx<tiles; tx++) {
+            if (this.cells == null && this.chunks.get(tx) == null)
+                continue;
+            for (int ty=0; ty<tiles; ty++) {
+                if (this.cells == null ? this.chunks.get(tx).get(ty) == null : this.dugTiles.get(tx*tiles + ty) == 0)
+                    continue;
+                for (int x=tx*TILE; x<Math.min((tx+1)*TILE, this.length); x++) {
+                    for (int y=ty*TILE; y<Math.min((ty+1)*TILE, this.length); y++) {
+                        if ((get(x, y) & STATUS_MASK) == DUG) {
+                            if (n == dug.length)
+                                dug = Arrays.copyOf(dug, 2*n);
+                            dug[n++] = (long) x*this.length + y;
+                        }
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(dug, n);
+    }
+    
+    /**
+     * @return chance of a bomb on a square players know nothing about: the density a random board was drawn with,
+     *         or DEFAULT_DENSITY for a board read from a file or a snapshot. The bombs themselves are never counted,
+     *         since hints must not tell players more than they can see.
+     */
+    private double hintDensity() {
+        return this.density >= 0 ? this.density : DEFAULT_DENSITY;
+    }
+    
+    /**
+     * Makes every move that changes the board from now on go to journal
+     * @param journal to append moves to
+     */
+    void setJournal(MoveJournal journal) {
+        this.journal = journal;
+    }
+    
+    /**
+     * Applies a move read back from a journal. Called before setJournal, so the move is not journaled again.
+     * @param kind MOVE_DIG, MOVE_FLAG or MOVE_DEFLAG
+     * @param location of the square the move was on
+     * @return true if the move changed the board, as every journaled move did when it first ran
+     */
+    boolean replay(int kind, int x, int y) {
         if (x<0 || y<0 || x>=this.length || y>= this.length)
-            return toString();
-        Cell currentCell = board[x][y];
-        if (currentCell.getStatus() == Cell.Type.FLAG){
-            currentCell.setStatus(Cell.Type.UNTOUCHED);
+            return false;
+        Move move = new Move(false);
+        lock(boardLock.writeLock());
+        try {
+            if (kind == MOVE_DIG)
+                digLocked(x, y, move);
+            else if (kind == MOVE_FLAG)
+                flagLocked(x, y, move);
+            else if (kind == MOVE_DEFLAG)
+                deflagLocked(x, y, move);
+        } finally {
+            boardLock.writeLock().unlock();
         }
-        return toString();
+        return move.count > 0;
+    }
+    
+    /**
+     * Builds the delta message for a move. The grammar is
+     * 
+     * DELTA :== "delta" SPACE VERSION SPACE N NEWLINE (X SPACE Y SPACE STATE NEWLINE){N}
+     * STATE :== "-" | "F" | [0-8]
+     * 
+     * where VERSION is the board version after the move, N is the number of squares whose symbol changed and
+     * STATE is the new symbol of square X,Y, with "0" standing for a dug square with no neighbor bombs
+     * (shown as a blank in the board message).
+     * @param move that recorded its changes
+     * @return delta message
+     */
+    private String delta(Move move) {
+        StringBuilder result = new StringBuilder(16 + 12*move.count);
+        result.append("delta ").append(move.version).append(' ').append(move.count).append('\n');
+        for (int i=0; i<move.count; i++) {
+            long index = move.changed[i];
+            char symbol = (char) move.symbols[i];
+            result.append(index / this.length).append(' ').append(index % this.length).append(' ')
+                .append(symbol == ' ' ? '0' : symbol).append('\n');
+        }
+        return result.toString();
+    }
+    
+    /**
+     * @param location of a square on the board
+     * @return the packed square
+     */
+    private int get(int x, int y) {
+        if (this.cells != null)
+            return this.cells[x*this.length+y];
+        return chunk(x, y)[(x & (TILE-1)) * TILE + (y & (TILE-1))];
+    }
+    
+    /**
+     * Stores a packed square, without touching the render buffer
+     * @param location of a square on the board
+     * @param packed new value of the square
+     */
+    private void put(int x, int y, int packed) {
+        if (this.cells != null)
+            this.cells[x*this.length+y] = (byte) packed;
+        else
+            chunk(x, y)[(x & (TILE-1)) * TILE + (y & (TILE-1))] = (byte) packed;
+    }
+    
+    /**
+     * Returns the chunk of a lazy board holding (x,y), creating it if no move has reached it before
+     * @param location of a square on the board
+     * @return the chunk
+     */
+    private byte[] chunk(int x, int y) {
+        AtomicReferenceArray<byte[]> row = this.chunks.get(x / TILE);
+        if (row == null) {
+            this.chunks.compareAndSet(x / TILE, null, new AtomicReferenceArray<byte[]>(this.chunksPerSide));
+            row = this.chunks.get(x / TILE);
+        }
+        byte[] chunk = row.get(y / TILE);
+        if (chunk != null)
+            return chunk;
+        chunk = generate(this.seed, this.density, x / TILE, y / TILE);
+        if (row.compareAndSet(y / TILE, null, chunk))
+            return chunk;
+        return row.get(y / TILE);
+    }
+    
+    /**
+     * Draws the bombs of one chunk of a seeded random board. Every square of the chunk is drawn, even those off
+     * the board, so a chunk's bombs depend only on the seed, the density and where the chunk is.
+     * @param seed seed of the board
+     * @param density probability of each square holding a bomb
+     * @param cx row of the chunk, counted in chunks
+     * @param cy column of the chunk, counted in chunks
+     * @return TILE*TILE packed squares, row by row
+     */
+    private static byte[] generate(long seed, double density, int cx, int cy) {
+        byte[] chunk = new byte[TILE*TILE];
+        SplittableRandom random = new SplittableRandom(mix(seed + (((long) cx << 32) | cy) * 0x9e3779b97f4a7c15L));
+        for (int i=0; i<chunk.length; i++) {
+            if (random.nextDouble() < density)
+                chunk[i] = BOMB;
+        }
+        return chunk;
+    }
+    
+    /**
+     * @param z any value
+     * @return z with its bits well mixed, so nearby values give unrelated generator seeds
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+    
+    /**
+     * @param location of a square on the board
+     * @return status bits of the square
+     */
+    private int status(int x, int y) {
+        return get(x, y) & STATUS_MASK;
+    }
+    
+    /**
+     * Replaces the status bits of the square, keeping its bomb bit and count
+     * @param location of a square on the board
+     * @param status one of UNTOUCHED, FLAG or DUG
+     * @param move collects the change
+     */
+    private void setStatus(int x, int y, int status, Move move) {
+        setCell(x, y, (get(x, y) & ~STATUS_MASK) | status, move);
+    }
+    
+    /**
+     * Stores the packed square and patches its symbol in the render buffer, if there is one
+     * @param location of a square on the board
+     * @param packed new value of the square
+     * @param move collects the change if the symbol changed
+     */
+    private void setCell(int x, int y, int packed, Move move) {
+        int before = get(x, y);
+        byte old = (byte) symbol(before);
+        put(x, y, packed);
+        byte symbol = (byte) symbol(packed);
+        if ((before & STATUS_MASK) != (packed & STATUS_MASK)) {
+            if ((before & STATUS_MASK) == DUG)
+                countDug(x, y, -1);
+            else if ((packed & STATUS_MASK) == DUG)
+                countDug(x, y, 1);
+        }
+        if (old != symbol) {
+            if (this.render != null)
+                this.render[2*(x*this.length+y)] = symbol;
+            if (move.record)
+                move.add((long) x*this.length+y, symbol);
+            else
+                move.count++;
+        }
+    }
+    
+    /**
+     * Keeps the dug squares of (x,y)'s tile counted on an eager board
+     * @param location of a square on the board
+     * @param delta 1 when the square was dug, -1 when it stopped being dug
+     */
+    private void countDug(int x, int y, int delta) {
+        if (this.dugTiles != null)
+            this.dugTiles.addAndGet((x / TILE) * ((this.length + TILE - 1) / TILE) + y / TILE, delta);
     }
     
     /**
@@ -140,61 +1708,243 @@ public class Board {
      * @param location of cell in x & y coordinates
      * @return number of neighbor bombs
      */
-    private int countNeighbors(int x, int y) {
+    private int neighborBombs(int x, int y) {
         int count = 0;
         int x1 = Math.max(x-1, 0);
         int x2 = Math.min(x+1, this.length-1);
         int y1 = Math.max(y-1, 0);
         int y2 = Math.min(y+1, this.length-1);
+        if (this.cells == null) {
+            for (int i=x1; i<=x2; i++) {
+                for (int j=y1; j<=y2; j++) {
+                    count += get(i, j) & BOMB;
+                }
+            }
+            return count - (get(x, y) & BOMB);
+        }
         for (int i=x1; i<=x2; i++) {
+            int row = i*this.length;
             for (int j=y1; j<=y2; j++) {
-                if (board[i][j].hasBomb())
-                    count++;
+                count += cells[row+j] & BOMB;
             }             
         }
-        if (board[x][y].hasBomb())
-            count--;
-        board[x][y].setCount(count);
+        return count - (cells[x*this.length+y] & BOMB);
+    }
+    
+    /**
+     * Counts number of bombs in the neighbors of the cell and stores it in the cell
+     * @param location of cell in x & y coordinates
+     * @param move collects the change
+     * @return number of neighbor bombs
+     */
+    private int countNeighbors(int x, int y, Move move) {
+        int count = neighborBombs(x, y);
+        setCell(x, y, (get(x, y) & ~COUNT_MASK) | (count << COUNT_SHIFT), move);
         return count;      
     }
     
     /**
-     * Change all neighbors to dug, then recurse on any cells that have no neighbors with bombs
+     * Change all neighbors to dug, then do the same for any of them that have no neighbors with bombs.
+     * This is the recursive step of the dig spec, run with an explicit stack of square coordinates instead of
+     * recursion so that large empty regions cannot overflow the thread stack. Every square is pushed at most
+     * once because it is marked dug before it is pushed, so the work is linear in the number of squares revealed.
      * @param location of cell in x & y coordinates
+     * @param move collects the squares revealed
      * @return None
      */
-    private void recurseNeighbors(int x, int y) {
-        int x1 = Math.max(x-1, 0);
-        int x2 = Math.min(x+1, this.length-1);
-        int y1 = Math.max(y-1, 0);
-        int y2 = Math.min(y+1, this.length-1);
-        for (int i=x1; i<=x2; i++) {
-            for (int j=y1; j<=y2; j++) {
-                if ((i!=x || j!=y) && board[i][j].getStatus()==Cell.Type.UNTOUCHED) {
-                    board[i][j].setStatus(Cell.Type.DUG);
-                    if (countNeighbors(i,j) == 0)
-                        recurseNeighbors(i, j);
+    private void recurseNeighbors(int x, int y, Move move) {
+        // x and y of each square, one after the other
+        int[] stack = new int[16];
+        int size = 0;
+        stack[size++] = x;
+        stack[size++] = y;
+        while (size > 0) {
+            if (this.parallelFlood > 0 && size > this.parallelFlood) {
+                new Flood(this, stack, size, move.record).fill(move);
+                return;
+            }
+            int cy = stack[--size];
+            int cx = stack[--size];
+            int x1 = Math.max(cx-1, 0);
+            int x2 = Math.min(cx+1, this.length-1);
+            int y1 = Math.max(cy-1, 0);
+            int y2 = Math.min(cy+1, this.length-1);
+            for (int i=x1; i<=x2; i++) {
+                for (int j=y1; j<=y2; j++) {
+                    if (status(i, j)==UNTOUCHED) {
+                        int count = countNeighbors(i, j, move);
+                        setStatus(i, j, DUG, move);
+                        if (count == 0) {
+                            if (size == stack.length)
+                                stack = Arrays.copyOf(stack, 2*size);
+                            stack[size++] = i;
+                            stack[size++] = j;
+                        }
+                    }
                 }
-            }             
+            }
+        }
+    }
+    
+    /**
+     * Sets the stack size past which flood fills go parallel. By default they never do, unless
+     * minesweeper.parallelFlood sets a threshold for every board.
+     * @param threshold stack size, counting two entries per square, or 0 to always fill on one thread
+     */
+    void setParallelFlood(int threshold) {
+        this.parallelFlood = threshold;
+    }
+    
+    /**
+     * Digs the rest of a large flood fill on the common fork-join pool. Run with the write lock held, so the only
+     * threads touching the squares are the tasks of the fill. A task digs a square by replacing its untouched byte
+     * with the dug byte and its count in one compareAndSet, so every square is dug by exactly one task, and splits
+     * half of its stack off to a new task whenever the stack grows past SPLIT. Bombs do not move during a fill, so
+     * the counts are the same as when filling on one thread, and so is the set of squares dug: every untouched
+     * square next to a dug square with no neighbor bombs, whatever order they are reached in. Only the order of
+     * the squares in the move differs.
+     */
+    private static final class Flood extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        /** Stack size, counting two entries per square, past which a task hands half of it to a new task. */
+        private static final int SPLIT = 512;
+        private final Board board;
+        private final boolean record;
+        private int[] stack;
+        private int size;
+        /** Tasks split off from this one. */
+        private final List<Flood> forked = new ArrayList<Flood>();
+        // Squares this task dug, like a Move's
+        private long[] changed;
+        private byte[] symbols;
+        private int count;
+        
+        /**
+         * @param board being dug
+         * @param stack x and y of the squares to visit, one after the other; kept by the task
+         * @param size number of entries in stack
+         * @param record whether to keep the dug squares, not just count them
+         */
+        Flood(Board board, int[] stack, int size, boolean record) {
+            this.board = board;
+            this.stack = stack;
+            this.size = size;
+            this.record = record;
+            this.changed = record ? new long[64] : null;
+            this.symbols = record ? new byte[64] : null;
+        }
+        
+        /**
+         * Runs the fill and adds every square it dug to move
+         * @param move of the dig
+         */
+        void fill(Move move) {
+            invoke();
+            List<Flood> tasks = new ArrayList<Flood>();
+            tasks.add(this);
+            for (int t=0; t<tasks.size(); t++) {
+                Flood task = tasks.get(t);
+                tasks.addAll(task.forked);
+                if (move.record) {
+                    for (int i=0; i<task.count; i++) {
+                        move.add(task.changed[i], task.symbols[i]);
+                    }
+                } else {
+                    move.count += task.count;
+                }
+            }
         }
+        
+        @Override
+        protected void compute() {
+            int length = board.length;
+            while (size > 0) {
+                if (size > SPLIT) {
+                    int half = (size / 2) & ~1;
+                    Flood other = new Flood(board, Arrays.copyOf(stack, Math.max(16, half)), half, record);
+                    System.arraycopy(stack, half, stack, 0, size - half);
+                    size -= half;
+                    forked.add(other);
+                    other.fork();
+                }
+                int cy = stack[--size];
+                int cx = stack[--size];
+                int x1 = Math.max(cx-1, 0);
+                int x2 = Math.min(cx+1, length-1);
+                int y1 = Math.max(cy-1, 0);
+                int y2 = Math.min(cy+1, length-1);
+                for (int i=x1; i<=x2; i++) {
+                    for (int j=y1; j<=y2; j++) {
+                        int packed = board.get(i, j);
+                        if ((packed & STATUS_MASK) != UNTOUCHED)
+                            continue;
+                        int bombs = board.neighborBombs(i, j);
+                        int dug = (packed & ~(STATUS_MASK | COUNT_MASK)) | DUG | (bombs << COUNT_SHIFT);
+                        if (!board.claim(i, j, packed, dug))
+                            continue;
+                        dug(i, j, dug);
+                        if (bombs == 0) {
+                            if (size == stack.length)
+                                stack = Arrays.copyOf(stack, 2*size);
+                            stack[size++] = i;
+                            stack[size++] = j;
+                        }
+                    }
+                }
+            }
+            for (Flood task : forked) {
+                task.join();
+            }
+        }
+        
+        /**
+         * Records a square this task dug and patches the render buffer
+         */
+        private void dug(int x, int y, int packed) {
+            byte symbol = (byte) symbol(packed);
+            if (board.render != null)
+                board.render[2*(x*board.length+y)] = symbol;
+            board.countDug(x, y, 1);
+            if (record) {
+                if (count == changed.length) {
+                    changed = Arrays.copyOf(changed, 2*count);
+                    symbols = Arrays.copyOf(symbols, 2*count);
+                }
+                changed[count] = (long) x*board.length+y;
+                symbols[count] = symbol;
+            }
+            count++;
+        }
+    }
+    
+    /**
+     * Replaces a square if it still holds what the caller read, for fills running on several threads at once
+     * @param location of a square on the board
+     * @param expected packed square the caller read
+     * @param packed new packed square
+     * @return true if the square was replaced
+     */
+    private boolean claim(int x, int y, int expected, int packed) {
+        if (this.cells != null)
+            return SQUARES.compareAndSet(this.cells, x*this.length+y, (byte) expected, (byte) packed);
+        return SQUARES.compareAndSet(chunk(x, y), (x & (TILE-1)) * TILE + (y & (TILE-1)), (byte) expected,
+                (byte) packed);
     }
     
     /**
      * Update the bomb count of the cell and all its neighbors
      * @param location of cell in x & y coordinates
+     * @param move collects the changes
      * @return None
      */
-    private void updateCount(int x, int y) {
+    private void updateCount(int x, int y, Move move) {
         int x1 = Math.max(x-1, 0);
         int x2 = Math.min(x+1, this.length-1);
         int y1 = Math.max(y-1, 0);
         int y2 = Math.min(y+1, this.length-1);
-        int count;
         for (int i=x1; i<=x2; i++) {
             for (int j=y1; j<=y2; j++) {
-                count = countNeighbors(i,j);
-                board[i][j].setCount(count);
-                
+                countNeighbors(i, j, move);
             }             
         }
     }
@@ -205,17 +1955,88 @@ public class Board {
      * @return String representation of board message
      */
     @Override
-    public synchronized String toString() {
-        String result = "";
-        for (int i=0; i<this.length; i++) {
-            for (int j=0; j<this.length; j++) {
-                result += board[i][j].toString() + " ";
-            }
-            // Results extra space at the end of the line
-            result = result.substring(0, result.length()-1);
-            // Appends new line
-            result += "\n";
-        }
-        return result;
+    public String toString() {
+        return current().text();
+    }
+    
+    /**
+     * Builds the board message. Called with the write lock held. A lazy board builds it from its chunks, showing
+     * the squares of chunks nobody has touched as untouched without creating the chunks.
+     * @return board message, or a note saying the board is too large if the message would not fit in a String
+     */
+    private String message() {
+        if (this.render != null)
+            return new String(this.render, StandardCharsets.US_ASCII);
+        if (2L*this.length*this.length > MAX_MESSAGE)
+            return TOO_LARGE;
+        byte[] message = new byte[2*this.length*this.length];
+        int pos = 0;
+        for (int x=0; x<this.length; x++) {
+            for (int y=0; y<this.length; y++) {
+                message[pos++] = (byte) peek(x, y);
+                message[pos++] = y == this.length-1 ? (byte) '\n' : (byte) ' ';
+            }
+        }
+        return new String(message, StandardCharsets.US_ASCII);
+    }
+    
+    /**
+     * Reads the symbol of a square of a lazy board without creating its chunk
+     * @param location of a square on the board
+     * @return the square's symbol, '-' if its chunk has not been created
+     */
+    private char peek(int x, int y) {
+        byte[] chunk = existingChunk(x, y);
+        if (chunk == null)
+            return '-';
+        return symbol(chunk[(x & (TILE-1)) * TILE + (y & (TILE-1))]);
+    }
+    
+    /**
+     * Reads a packed square of a lazy board without creating its chunk. A square of a chunk not created yet is
+     * untouched, with its bomb drawn as the chunk would draw it.
+     * @param location of a square on the board
+     * @return the packed square
+     */
+    private int peekSquare(int x, int y) {
+        byte[] chunk = existingChunk(x, y);
+        if (chunk == null)
+            chunk = generate(this.seed, this.density, x / TILE, y / TILE);
+        return chunk[(x & (TILE-1)) * TILE + (y & (TILE-1))];
+    }
+    
+    /**
+     * @param location of a square on a lazy board
+     * @return the chunk holding it, or null if no move has reached it yet
+     */
+    private byte[] existingChunk(int x, int y) {
+        AtomicReferenceArray<byte[]> row = this.chunks.get(x / TILE);
+        return row == null ? null : row.get(y / TILE);
+    }
+    
+    /**
+     * @param location of a square on the board
+     * @return true if the board is eager, or the square's chunk has been created
+     */
+    boolean hasChunk(int x, int y) {
+        return this.cells != null || existingChunk(x, y) != null;
+    }
+    
+    /**
+     * @param packed square
+     * @return character used for the square in the board message
+     */
+    private static char symbol(int packed) {
+        switch (packed & STATUS_MASK) {
+        case FLAG:
+            return 'F';
+        case DUG:
+            int count = (packed & COUNT_MASK) >> COUNT_SHIFT;
+            if (count == 0)
+                return ' ';
+            return (char) ('0' + count);
+        default:
+            return '-';
+        }
     }
 }
@@ -0,0 +1,331 @@
+package minesweeper.server;
+
+/*
+ * Pushes the changes made to a board to the connections subscribed to it, so they see other players' moves without
+ * polling with look. A board gets a feed when the first connection subscribes and drops it again once nobody is
+ * subscribed, so boards without subscribers pay nothing for it.
+ *
+ * Board appends the squares each move changed while still holding the move's locks, so changes to the same square are
+ * appended in the order they were made. Once per tick (minesweeper.tickMillis milliseconds, 50 by default) the feed
+ * takes everything appended since the last tick, keeps each square once with its latest symbol, and encodes one
+ * update message, which every subscriber is sent as the same bytes. A burst of moves therefore costs each subscriber
+ * at most one message per tick, and costs the server one encoding per tick however many subscribers there are.
+ *
+ * UPDATE :== "update" SPACE VERSION SPACE N NEWLINE (X SPACE Y SPACE STATE NEWLINE){N}
+ *
+ * with X, Y and STATE as in delta messages (see Board.digDelta), in row-major order, and VERSION the board version
+ * after the last move the update covers.
+ *
+ * Moves on different stripes get their versions in one order and may append in another, so a tick may find version
+ * V+1 appended while V is not yet. An update only covers the moves up to the lowest version not appended yet, and
+ * later moves wait for the next tick, so an update of version V holds exactly the changes of the moves up to V.
+ *
+ * A subscriber must not see an update before the answer to its subscribe request, which carries the board version
+ * the updates continue from. A Subscription therefore holds the updates back until the engine has queued that answer
+ * and calls activate.
+ *
+ * The feed is threadsafe: the appended changes and the subscribers are guarded by the feed's monitor, which is only
+ * held to copy them; updates are encoded and pushed by the ticker thread without it. The board's feed lock is taken
+ * before the monitor, never while holding it. Each Subscription guards its
+ * own state, so updates reach each subscriber in order.
+ */
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class BoardFeed implements Runnable {
+    private static final long TICK_MILLIS = Long.getLong("minesweeper.tickMillis", 50);
+    private static final ScheduledExecutorService TICKER =
+            Executors.newSingleThreadScheduledExecutor(RoomRegistry.daemon("board-feed"));
+
+    /**
+     * Where a subscription's updates go, supplied by the engine serving the connection
+     */
+    public interface Subscriber {
+        /**
+         * Sends an update to the connection. Must not block for long, since it runs on the ticker thread.
+         * @param update encoded update message, shared with every other subscriber; must not be changed
+         * @return false if the connection is gone, which ends the subscription
+         */
+        boolean push(byte[] update);
+    }
+
+    /**
+     * One connection's subscription to a board
+     */
+    public static class Subscription {
+        private final BoardFeed feed;
+        private final Subscriber subscriber;
+        // Guarded by this
+        private boolean live = false;
+        /** Updates made before the answer to subscribe was queued; null once live. */
+        private List<byte[]> held = new ArrayList<byte[]>();
+
+        private Subscription(BoardFeed feed, Subscriber subscriber) {
+            this.feed = feed;
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * @return true once activate has been called
+         */
+        public synchronized boolean isLive() {
+            return this.live;
+        }
+
+        /**
+         * Starts sending updates, beginning with those held back so far. Called by the engine once the answer to
+         * the subscribe request is queued ahead of anything pushed from now on.
+         */
+        public synchronized void activate() {
+            if (live)
+                return;
+            live = true;
+            for (byte[] update : held) {
+                if (!subscriber.push(update)) {
+                    cancel();
+                    break;
+                }
+            }
+            held = null;
+        }
+
+        /**
+         * Stops sending updates
+         */
+        public void cancel() {
+            feed.remove(this);
+        }
+
+        /**
+         * @return false if the subscriber is gone
+         */
+        private synchronized boolean deliver(byte[] update) {
+            if (!live) {
+                held.add(update);
+                return true;
+            }
+            return subscriber.push(update);
+        }
+    }
+
+    private final Board board;
+    private final ScheduledFuture<?> tick;
+    // Guarded by this
+    private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+    /** Squares changed since the last tick, as x*length+y, with the symbol each change left. */
+    private long[] keys = new long[64];
+    private byte[] symbols = new byte[64];
+    private int count = 0;
+    /** Version of each move appended since the last tick, and the index in keys after its last change. */
+    private long[] moveVersions = new long[16];
+    private int[] moveEnds = new int[16];
+    private int moves = 0;
+    /** True once start has given the version the feed's moves continue from. */
+    private boolean started = false;
+    /** Every move up to this version has been appended. */
+    private long appended = 0;
+    /** Versions above appended+1 that have been appended already. */
+    private final PriorityQueue<Long> appendedAhead = new PriorityQueue<Long>();
+
+    /**
+     * Makes a feed for board and starts its ticks. Only called by Board.subscribe.
+     * @param board to watch
+     */
+    BoardFeed(Board board) {
+        this.board = board;
+        this.tick = TICKER.scheduleAtFixedRate(this, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a subscriber. Only called by Board.subscribe, with the board's feed lock held.
+     * @param subscriber where the updates go
+     * @return the subscription, not live yet
+     */
+    synchronized Subscription add(Subscriber subscriber) {
+        Subscription subscription = new Subscription(this, subscriber);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Gives the version from which every move appends to the feed. Only called by Board.subscribe, once no move that
+     * started before the feed was installed is still running; later calls change nothing.
+     * @param version board version at that point
+     */
+    synchronized void start(long version) {
+        if (started)
+            return;
+        started = true;
+        appended = version;
+        advance();
+    }
+
+    /**
+     * Moves appended up past the versions appended ahead of it
+     */
+    private void advance() {
+        while (!appendedAhead.isEmpty() && appendedAhead.peek() <= appended + 1) {
+            appended = Math.max(appended, appendedAhead.poll());
+        }
+    }
+
+    private synchronized void remove(Subscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    /**
+     * Stops the ticks if nobody is subscribed. Only called by Board.dropFeed, with the board's feed lock held, so no
+     * subscriber can be added meanwhile.
+     * @return true if the feed was stopped
+     */
+    synchronized boolean stopIfIdle() {
+        if (!subscriptions.isEmpty())
+            return false;
+        tick.cancel(false);
+        return true;
+    }
+
+    /**
+     * Appends the squares a move changed. Called by Board with the move's locks held.
+     * @param changed the changed squares, as x*length+y
+     * @param changedSymbols symbol each change left
+     * @param from index of the move's first change
+     * @param to index after the move's last change
+     * @param version board version the move produced
+     */
+    synchronized void append(long[] changed, byte[] changedSymbols, int from, int to, long version) {
+        int n = to - from;
+        if (count + n > keys.length) {
+            int capacity = Math.max(2*keys.length, count + n);
+            keys = Arrays.copyOf(keys, capacity);
+            symbols = Arrays.copyOf(symbols, capacity);
+        }
+        System.arraycopy(changed, from, keys, count, n);
+        System.arraycopy(changedSymbols, from, symbols, count, n);
+        count += n;
+        if (moves == moveVersions.length) {
+            moveVersions = Arrays.copyOf(moveVersions, 2*moves);
+            moveEnds = Arrays.copyOf(moveEnds, 2*moves);
+        }
+        moveVersions[moves] = version;
+        moveEnds[moves] = count;
+        moves++;
+        if (started && version == appended + 1)
+            appended = version;
+        else if (!started || version > appended)
+            appendedAhead.add(version);
+        if (started)
+            advance();
+    }
+
+    /**
+     * One tick: sends everything appended since the last tick to every subscriber as one update
+     */
+    @Override
+    public void run() {
+        long[] tickKeys;
+        byte[] tickSymbols;
+        int n;
+        long tickVersion;
+        Subscription[] targets;
+        boolean idle;
+        synchronized (this) {
+            idle = subscriptions.isEmpty();
+        }
+        if (idle) {
+            // Not under this feed's monitor: subscribe takes the feed lock and then the monitor, and dropFeed checks
+            // again under the feed lock that nobody subscribed meanwhile
+            board.dropFeed(this);
+            return;
+        }
+        synchronized (this) {
+            if (!started)
+                return;
+            n = 0;
+            for (int m=0; m<moves; m++) {
+                if (moveVersions[m] <= appended)
+                    n += moveEnds[m] - (m == 0 ? 0 : moveEnds[m-1]);
+            }
+            if (n == 0)
+                return;
+            if (n == count) {
+                tickKeys = keys;
+                tickSymbols = symbols;
+                keys = new long[Math.max(64, n / 2)];
+                symbols = new byte[keys.length];
+                count = 0;
+                moves = 0;
+            } else {
+                tickKeys = new long[n];
+                tickSymbols = new byte[n];
+                takeCovered(tickKeys, tickSymbols);
+            }
+            tickVersion = appended;
+            targets = subscriptions.toArray(new Subscription[subscriptions.size()]);
+        }
+        byte[] update = encode(tickKeys, tickSymbols, n, tickVersion, board.getLength());
+        for (Subscription subscription : targets) {
+            if (!subscription.deliver(update))
+                subscription.cancel();
+        }
+    }
+
+    /**
+     * Moves the changes of the moves up to appended into tickKeys and tickSymbols, in the order they were appended,
+     * and keeps the rest for a later tick. Called with the monitor held.
+     */
+    private void takeCovered(long[] tickKeys, byte[] tickSymbols) {
+        int taken = 0;
+        int kept = 0;
+        int keptMoves = 0;
+        int start = 0;
+        for (int m=0; m<moves; m++) {
+            int end = moveEnds[m];
+            if (moveVersions[m] <= appended) {
+                System.arraycopy(keys, start, tickKeys, taken, end - start);
+                System.arraycopy(symbols, start, tickSymbols, taken, end - start);
+                taken += end - start;
+            } else {
+                // kept never passes start, so the changes kept are moved down over those taken
+                System.arraycopy(keys, start, keys, kept, end - start);
+                System.arraycopy(symbols, start, symbols, kept, end - start);
+                kept += end - start;
+                moveVersions[keptMoves] = moveVersions[m];
+                moveEnds[keptMoves] = kept;
+                keptMoves++;
+            }
+            start = end;
+        }
+        count = kept;
+        moves = keptMoves;
+    }
+
+    /**
+     * @return update message listing each square once, with the last symbol appended for it
+     */
+    private static byte[] encode(long[] keys, byte[] symbols, int n, long version, int length) {
+        // Later changes to a square replace earlier ones
+        Map<Long, Byte> latest = new TreeMap<Long, Byte>();
+        for (int i=0; i<n; i++) {
+            latest.put(keys[i], symbols[i]);
+        }
+        StringBuilder result = new StringBuilder(16 + 12*latest.size());
+        result.append("update ").append(version).append(' ').append(latest.size()).append('\n');
+        for (Map.Entry<Long, Byte> square : latest.entrySet()) {
+            long key = square.getKey();
+            char symbol = (char) (byte) square.getValue();
+            result.append(key / length).append(' ').append(key % length).append(' ')
+                .append(symbol == ' ' ? '0' : symbol).append('\n');
+        }
+        return result.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,140 @@
+package minesweeper.server;
+
+/*
+ * Binary snapshots of a board, including what has been dug and flagged, so a server can be restarted without losing
+ * the game. A snapshot file holds, big-endian:
+ * 
+ * MAGIC      4 bytes  "MSWS"
+ * FORMAT     int      format version, currently 1
+ * LENGTH     int      length of each side of the board
+ * VERSION    long     Board.getVersion() when the snapshot was taken
+ * SQUARES    LENGTH*LENGTH bytes, row-major, one per square as Board packs them: bit 0 is the bomb, bits 1-2 the
+ *            status (0 untouched, 1 flagged, 2 dug) and bits 3-6 the neighbor bomb count of dug squares
+ * CHECKSUM   int      CRC-32 of everything before it
+ * 
+ * Squares are stored exactly as the board keeps them, so taking a snapshot is one array copy under the board lock
+ * and loading one is a single read, with no per-square encoding either way. Snapshots are written to a temporary
+ * file that then replaces the old snapshot, so a crash while writing leaves the previous snapshot intact.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+public class BoardSnapshot {
+    private static final int MAGIC = 0x4d53_5753; // "MSWS"
+    private static final int FORMAT = 1;
+    private static final int HEADER = 20;
+    
+    private BoardSnapshot() {
+    }
+    
+    /**
+     * Writes a snapshot
+     * @param file to write, replaced atomically
+     * @param length length of each side of the board
+     * @param version version of the board
+     * @param squares packed squares, length*length of them
+     */
+    static void write(File file, int length, long version, byte[] squares) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putInt(MAGIC).putInt(FORMAT).putInt(length).putLong(version).flip();
+        CRC32 crc = new CRC32();
+        crc.update(header.array());
+        crc.update(squares);
+        ByteBuffer checksum = ByteBuffer.allocate(4);
+        checksum.putInt((int) crc.getValue()).flip();
+        
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer body = ByteBuffer.wrap(squares);
+            while (header.hasRemaining() || body.hasRemaining() || checksum.hasRemaining()) {
+                channel.write(new ByteBuffer[] { header, body, checksum });
+            }
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Loads a snapshot
+     * @param file written by Board.save
+     * @return the board as it was when the snapshot was taken
+     * @throws IOException if the file cannot be read, is not a snapshot or is corrupt
+     */
+    public static Board read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            readFully(channel, header);
+            header.flip();
+            if (header.getInt() != MAGIC)
+                throw new IOException("Not a board snapshot: " + file);
+            int format = header.getInt();
+            if (format != FORMAT)
+                throw new IOException("Unsupported snapshot format " + format + ": " + file);
+            int length = header.getInt();
+            long version = header.getLong();
+            if (length < 0 || (long) length * length > Integer.MAX_VALUE
+                    || channel.size() != HEADER + (long) length * length + 4)
+                throw new IOException("Corrupt board snapshot, wrong size: " + file);
+            byte[] squares = new byte[length*length];
+            readFully(channel, ByteBuffer.wrap(squares));
+            ByteBuffer checksum = ByteBuffer.allocate(4);
+            readFully(channel, checksum);
+            CRC32 crc = new CRC32();
+            crc.update(header.array());
+            crc.update(squares);
+            if ((int) crc.getValue() != checksum.getInt(0))
+                throw new IOException("Corrupt board snapshot, checksum mismatch: " + file);
+            try {
+                return new Board(length, squares, version);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupt board snapshot, " + e.getMessage() + ": " + file);
+            }
+        }
+    }
+    
+    /**
+     * Saves board to file every millis milliseconds, and once more when the process shuts down. After each save the
+     * journal drops the moves the snapshot holds, see MoveJournal.compact.
+     * @param board to save, requires !board.isLazy()
+     * @param file to save to
+     * @param millis time between snapshots, requires millis > 0
+     * @param journal board's journal, or null if its moves are not journaled
+     */
+    static void schedule(final Board board, final File file, long millis, final MoveJournal journal) {
+        if (board.isLazy())
+            throw new IllegalArgumentException("Lazy boards cannot be saved as snapshots");
+        final Runnable save = new Runnable() {
+            // The shutdown hook may run while a scheduled save is writing the same temporary file
+            public synchronized void run() {
+                try {
+                    long version = board.save(file);
+                    if (journal != null)
+                        journal.compact(version);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(RoomRegistry.daemon("snapshot"));
+        saver.scheduleWithFixedDelay(save, millis, millis, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(save, "snapshot-on-exit"));
+    }
+    
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                throw new IOException("Corrupt board snapshot, truncated");
+        }
+    }
+}
@@ -3,12 +3,29 @@ package minesweeper.server;
 import static org.junit.Assert.*;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import org.junit.Test;
 
@@ -82,6 +99,723 @@ public class BoardTest {
         assertEquals(b.look(), "- - 1    \n- 4 1    \n- 3      \n- 4 1    \n- - 1    \n");
     }
     
+    @Test
+    public void getCellTest() {
+        Board b = new Board("1 1 0 0 0\n1 0 0 0 0\n1 0 1 0 0\n1 0 0 0 0\n1 1 0 0 0\n");
+        b.dig(2, 2);
+        b.flag(0, 0);
+        Cell bomb = b.getCell(0, 0);
+        assertEquals(true, bomb.hasBomb());
+        assertEquals(Cell.Type.FLAG, bomb.getStatus());
+        Cell dug = b.getCell(1, 1);
+        assertEquals(false, dug.hasBomb());
+        assertEquals(Cell.Type.DUG, dug.getStatus());
+        assertEquals(4, dug.getCount());
+        // The view is a copy, so changing it leaves the board alone
+        dug.setStatus(Cell.Type.FLAG);
+        assertEquals(Cell.Type.DUG, b.getCell(1, 1).getStatus());
+    }
+    
+    /*
+     * The render buffer look answers from stays the same as a board message built square by square from getCell,
+     * through digs (including BOOMs, which change the counts around them), flags, deflags and flood fills, both
+     * sequential and parallel
+     */
+    @Test
+    public void renderTest() {
+        Board[] boards = { new Board(60, 7, 0.15), new Board(200, 7, 0.05) };
+        boards[1].setParallelFlood(16);
+        for (Board b : boards) {
+            Random random = new Random(7);
+            int len = b.getLength();
+            assertEquals(render(b), b.look());
+            for (int move=0; move<200; move++) {
+                int x = random.nextInt(len);
+                int y = random.nextInt(len);
+                int kind = random.nextInt(4);
+                if (kind == 0)
+                    b.flag(x, y);
+                else if (kind == 1)
+                    b.deflag(x, y);
+                else
+                    b.dig(x, y);
+                if (move % 10 == 0)
+                    assertEquals(render(b), b.look());
+            }
+            assertEquals(render(b), b.look());
+        }
+    }
+    
+    /**
+     * @return the board message of b, built from getCell
+     */
+    private static String render(Board b) {
+        StringBuilder message = new StringBuilder();
+        for (int x=0; x<b.getLength(); x++) {
+            for (int y=0; y<b.getLength(); y++) {
+                message.append(b.getCell(x, y)).append(y == b.getLength() - 1 ? "\n" : " ");
+            }
+        }
+        return message.toString();
+    }
+    
+    /*
+     * Digging into a huge empty board must reveal everything without overflowing the stack
+     */
+    @Test
+    public void largeEmptyDigTest() {
+        int len = 2000;
+        StringBuilder input = new StringBuilder();
+        for (int i=0; i<len; i++) {
+            for (int j=0; j<len; j++) {
+                input.append(j == 0 ? "0" : " 0");
+            }
+            input.append("\n");
+        }
+        Board b = new Board(input.toString());
+        b.dig(0, 0);
+        assertEquals(Cell.Type.DUG, b.getCell(len-1, len-1).getStatus());
+        assertEquals(Cell.Type.DUG, b.getCell(len/2, 0).getStatus());
+    }
+    
+    @Test
+    public void deltaTest() {
+        Board b = new Board("1 1 0 0 0\n1 0 0 0 0\n1 0 1 0 0\n1 0 0 0 0\n1 1 0 0 0\n");
+        assertEquals("delta 1 1\n4 4 F\n", b.flagDelta(4, 4));
+        // Flagging again changes nothing, so the version stays the same
+        assertEquals("delta 1 0\n", b.flagDelta(4, 4));
+        assertEquals("delta 2 1\n4 4 -\n", b.deflagDelta(4, 4));
+        String delta = b.digDelta(0, 4);
+        assertEquals(true, delta.startsWith("delta 3 14\n"));
+        assertEquals(true, delta.contains("\n2 3 1\n"));
+        assertEquals(true, delta.contains("\n0 4 0\n"));
+        assertEquals("version 3\n- - 1    \n- - 2 1  \n- - - 1  \n- - 2 1  \n- - 1    \n", b.lookVersion());
+    }
+    
+    /*
+     * Rooms keep their own player counts, and only empty idle rooms other than the default room are evicted
+     */
+    @Test
+    public void roomRegistryTest() throws InterruptedException {
+        RoomRegistry rooms = new RoomRegistry(new Board(3), 2, 5);
+        Room lobby = rooms.getDefault();
+        assertEquals(1, rooms.enter(lobby));
+        Room busy = rooms.create("busy", new Board(3));
+        assertEquals(null, rooms.create("busy", new Board(3)));
+        rooms.create("empty", new Board(3));
+        assertEquals(busy, rooms.move(lobby, "busy"));
+        assertEquals(null, rooms.move(busy, "missing"));
+        assertEquals(1, busy.getPlayers());
+        assertEquals(0, lobby.getPlayers());
+        Thread.sleep(50);
+        rooms.evictIdle();
+        assertEquals(lobby, rooms.get(RoomRegistry.DEFAULT_ROOM));
+        assertEquals(busy, rooms.get("busy"));
+        assertEquals(null, rooms.get("empty"));
+        assertEquals(true, busy.getExecutor() != lobby.getExecutor());
+        
+        RoomRegistry small = new RoomRegistry(new Board(3), 1, 0, 2);
+        assertEquals(false, small.isFull());
+        assertEquals(true, small.create("one", new Board(3)) != null);
+        assertEquals(true, small.isFull());
+        assertEquals(null, small.create("two", new Board(3)));
+    }
+    
+    /*
+     * Pipelined requests come out of one read one at a time, parsed the same way as the request regex
+     */
+    @Test
+    public void commandParserTest() throws IOException {
+        String requests = "dig 3 14\r\nflag 0 0\nlook\ndig 1  2\ndig 1\ndeflag 99999999999 7\njoin lobby\nbye";
+        CommandParser parser = new CommandParser(128);
+        parser.read(new ByteArrayInputStream(requests.getBytes()));
+        Command command = new Command();
+        assertEquals(true, parser.next(command));
+        assertEquals(Command.DIG, command.getOp());
+        assertEquals(3, command.getX());
+        assertEquals(14, command.getY());
+        assertEquals(true, parser.next(command));
+        assertEquals(Command.FLAG, command.getOp());
+        assertEquals(true, parser.next(command));
+        assertEquals(Command.LOOK, command.getOp());
+        assertEquals(true, parser.next(command));
+        assertEquals(Command.INVALID, command.getOp());
+        assertEquals(true, parser.next(command));
+        assertEquals(Command.INVALID, command.getOp());
+        assertEquals(true, parser.next(command));
+        assertEquals(Command.DEFLAG, command.getOp());
+        assertEquals(Integer.MAX_VALUE, command.getX());
+        assertEquals(true, parser.next(command));
+        assertEquals(Command.OTHER, command.getOp());
+        assertEquals("join lobby", command.text());
+        // The last line has no newline, so it only comes out at the end of the stream
+        assertEquals(false, parser.next(command));
+        assertEquals(true, parser.finish(command));
+        assertEquals(Command.BYE, command.getOp());
+        
+        // Reading moves the unparsed bytes to the front of the buffer, which must not change a parsed line's text
+        parser = new CommandParser(128);
+        parser.read(new ByteArrayInputStream("join first\ndig".getBytes()));
+        assertEquals(true, parser.next(command));
+        parser.read(new ByteArrayInputStream(" 1 2\n".getBytes()));
+        assertEquals("join first", command.text());
+        
+        // A lone "\r" ends a line too, as it does for readLine, and a "\r\n" split across reads ends only one
+        parser = new CommandParser(128);
+        parser.read(new ByteArrayInputStream("look\rflag 1 2\r".getBytes()));
+        assertEquals(true, parser.next(command));
+        assertEquals(Command.LOOK, command.getOp());
+        assertEquals(true, parser.next(command));
+        assertEquals(Command.FLAG, command.getOp());
+        assertEquals(false, parser.next(command));
+        parser.read(new ByteArrayInputStream("\nbye\n".getBytes()));
+        assertEquals(true, parser.next(command));
+        assertEquals(Command.BYE, command.getOp());
+        assertEquals(false, parser.next(command));
+        assertEquals(false, parser.finish(command));
+    }
+    
+    @Test
+    public void batchTest() {
+        Board b = new Board("1 1 0 0 0\n1 0 0 0 0\n1 0 1 0 0\n1 0 0 0 0\n1 1 0 0 0\n");
+        Command command = new Command();
+        byte[] line = "batch flag 0 0; flag 4 4;deflag 4 4; flag 9 9; dig 1 1".getBytes();
+        assertEquals(Command.BATCH, command.parse(line, 0, line.length).getOp());
+        assertEquals(5, command.getMoveCount());
+        assertEquals(false, command.isStopAtBoom());
+        long digs = Metrics.get().getDigs();
+        String delta = b.batch(command.getMoveKinds(), command.getMoveXs(), command.getMoveYs(),
+                command.getMoveCount(), command.isStopAtBoom(), true);
+        // 4 4 changed twice but is listed once, as untouched again
+        assertEquals("delta 4 3\n0 0 F\n1 1 5\n4 4 -\n", delta);
+        assertEquals(digs + 1, Metrics.get().getDigs());
+        
+        line = "batch stop dig 0 1; flag 2 2".getBytes();
+        assertEquals(Command.BATCH, command.parse(line, 0, line.length).getOp());
+        assertEquals(true, command.isStopAtBoom());
+        assertEquals("BOOM!\n", b.batch(command.getMoveKinds(), command.getMoveXs(), command.getMoveYs(),
+                command.getMoveCount(), command.isStopAtBoom(), false));
+        assertEquals("F 2 - - -\n- 4 - - -\n- - - - -\n- - - - -\n- - - - -\n", b.look());
+        
+        line = "batch dig 1 1; look".getBytes();
+        assertEquals(Command.INVALID, command.parse(line, 0, line.length).getOp());
+    }
+
+    @Test
+    public void metricsTest() {
+        Metrics metrics = Metrics.get();
+        long looks = metrics.getCommandCounts()[Command.LOOK];
+        long digs = metrics.getDigs();
+        Session session = new Session(new RoomRegistry(new Board("0 0 0\n0 0 0\n0 0 1\n"), 1, 0).getDefault());
+        MinesweeperServer.handleRequest("look", session);
+        assertEquals("     \n  1 1\n  1 -\n", MinesweeperServer.handleRequest("dig 0 0", session));
+        assertEquals(looks + 1, metrics.getCommandCounts()[Command.LOOK]);
+        assertEquals(digs + 1, metrics.getDigs());
+        assertEquals(true, metrics.getMaxSquaresRevealed() >= 8);
+        String report = MinesweeperServer.handleRequest("stats", session);
+        assertEquals(true, report.startsWith("connections "));
+        assertEquals(true, report.contains("\ncommand look count "));
+        assertEquals(true, report.contains("\ndig count "));
+    }
+    
+    /*
+     * A look at a window gives the same rows and columns as the whole board message, cut off at its edges
+     */
+    @Test
+    public void viewTest() {
+        Board b = new Board("1 1 0 0 0\n1 0 0 0 0\n1 0 1 0 0\n1 0 0 0 0\n1 1 0 0 0\n");
+        b.dig(0, 4);
+        b.flag(1, 1);
+        assertEquals("- - 1    \n- F 2 1  \n- - - 1  \n- - 2 1  \n- - 1    \n", b.look());
+        assertEquals("F 2 1\n- - 1\n", b.look(1, 1, 3, 2));
+        assertEquals("1  \n", b.look(1, 3, 3, 1));
+        assertEquals("version 2\n \n \n \n \n \n", b.lookVersion(0, 4, 1, 9));
+        
+        Session session = new Session(new RoomRegistry(b, 1, 0).getDefault());
+        assertEquals("F 2\n", MinesweeperServer.handleRequest("look 1 1 2 1", session));
+        assertEquals(null, MinesweeperServer.handleRequest("look 5 0 1 1", session));
+        assertEquals(null, MinesweeperServer.handleRequest("look 1 1 0 1", session));
+        assertEquals(null, MinesweeperServer.handleRequest("look 1 1 2", session));
+        assertEquals(null, MinesweeperServer.handleRequest("look 1 1 2 1 ", session));
+        
+        Board huge = Board.lazy(100000, 1, 0.25);
+        huge.flag(50000, 50001);
+        assertEquals("- F -\n- - -\n", huge.look(50000, 50000, 3, 2));
+        assertEquals("- -\n", huge.look(0, 99998, 5, 1));
+        assertEquals(true, huge.look().startsWith("Board too large"));
+        // Looking and reading squares create no chunks; a move does
+        assertEquals(Cell.Type.UNTOUCHED, huge.getCell(99999, 0).getStatus());
+        assertEquals(false, huge.hasChunk(0, 99998));
+        assertEquals(false, huge.hasChunk(99999, 0));
+        assertEquals(true, huge.hasChunk(50000, 50001));
+    }
+    
+    /*
+     * A subscriber that applies the pushed updates to the board message it got when subscribing ends up with the
+     * board as it is, and hears nothing once unsubscribed
+     */
+    @Test
+    public void subscribeTest() throws InterruptedException {
+        Board b = new Board("1 1 0 0 0\n1 0 0 0 0\n1 0 1 0 0\n1 0 0 0 0\n1 1 0 0 0\n");
+        final BlockingQueue<String> updates = new LinkedBlockingQueue<String>();
+        Session session = new Session(new RoomRegistry(b, 1, 0).getDefault());
+        session.setSubscriber(new BoardFeed.Subscriber() {
+            public boolean push(byte[] update) {
+                updates.add(new String(update));
+                return true;
+            }
+        });
+        b.flag(4, 0);
+        String snapshot = MinesweeperServer.handleRequest("subscribe", session);
+        assertEquals("version 1\n", snapshot.substring(0, 10));
+        b.flag(0, 0);
+        b.dig(0, 4);
+        b.deflag(0, 0);
+        Thread.sleep(200);
+        // Held back until the answer to subscribe has gone out
+        assertEquals(0, updates.size());
+        session.getSubscription().activate();
+        b.flag(3, 4);
+        
+        assertEquals(b.look(), applyUpdates(snapshot, updates, b));
+        
+        MinesweeperServer.handleRequest("unsubscribe", session);
+        b.flag(4, 4);
+        Thread.sleep(200);
+        assertEquals(0, updates.size());
+    }
+    
+    /*
+     * A move whose version was taken first but appended last holds back the update of the moves after it, so an
+     * update of version V covers exactly the moves up to V
+     */
+    @Test
+    public void feedOrderTest() throws InterruptedException {
+        Board b = new Board("0 0 0\n0 0 0\n0 0 0\n");
+        final BlockingQueue<String> updates = new LinkedBlockingQueue<String>();
+        b.subscribe(new BoardFeed.Subscriber() {
+            public boolean push(byte[] update) {
+                updates.add(new String(update));
+                return true;
+            }
+        }).activate();
+        BoardFeed feed = b.getFeed();
+        feed.append(new long[] { 4 }, new byte[] { 'F' }, 0, 1, 2);
+        feed.run();
+        assertEquals(null, updates.poll(200, TimeUnit.MILLISECONDS));
+        feed.append(new long[] { 0 }, new byte[] { 'F' }, 0, 1, 1);
+        assertEquals("update 2 2\n0 0 F\n1 1 F\n", updates.poll(5, TimeUnit.SECONDS));
+        // Moves up to the missing version go out, and the moves after it wait
+        feed.append(new long[] { 8 }, new byte[] { 'F' }, 0, 1, 5);
+        feed.append(new long[] { 2 }, new byte[] { 'F' }, 0, 1, 3);
+        assertEquals("update 3 1\n0 2 F\n", updates.poll(5, TimeUnit.SECONDS));
+        feed.append(new long[] { 6 }, new byte[] { 'F' }, 0, 1, 4);
+        assertEquals("update 5 2\n2 0 F\n2 2 F\n", updates.poll(5, TimeUnit.SECONDS));
+    }
+    
+    /*
+     * Subscribing while other threads make moves still gets every change made after the snapshot
+     */
+    @Test
+    public void subscribeDuringMovesTest() throws InterruptedException {
+        for (int round=0; round<20; round++) {
+            final Board b = new Board(40, round, 0);
+            final long end = System.nanoTime() + 20000000L;
+            Thread[] threads = new Thread[3];
+            for (int t=0; t<threads.length; t++) {
+                final int seed = t;
+                threads[t] = new Thread(new Runnable() {
+                    public void run() {
+                        for (int i=seed; System.nanoTime() < end; i+=7) {
+                            b.flag(i % 40, (i / 40) % 40);
+                            b.deflag((i*3) % 40, (i / 13) % 40);
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            final BlockingQueue<String> updates = new LinkedBlockingQueue<String>();
+            Session session = new Session(new RoomRegistry(b, 1, 0).getDefault());
+            session.setSubscriber(new BoardFeed.Subscriber() {
+                public boolean push(byte[] update) {
+                    updates.add(new String(update));
+                    return true;
+                }
+            });
+            String snapshot = MinesweeperServer.handleRequest("subscribe", session);
+            session.getSubscription().activate();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(b.look(), applyUpdates(snapshot, updates, b));
+            session.unsubscribe();
+        }
+    }
+    
+    /**
+     * Applies pushed updates to the board message a subscriber got, until it is at the board's current version
+     * @param snapshot answer to subscribe, starting with its version line
+     * @param updates pushed update messages
+     * @param b board subscribed to
+     * @return the board message the subscriber ends up with
+     */
+    private static String applyUpdates(String snapshot, BlockingQueue<String> updates, Board b)
+            throws InterruptedException {
+        int newline = snapshot.indexOf('\n');
+        long version = Long.parseLong(snapshot.substring("version ".length(), newline));
+        char[] board = snapshot.substring(newline + 1).toCharArray();
+        int length = b.getLength();
+        while (version < b.getVersion()) {
+            String update = updates.poll(5, TimeUnit.SECONDS);
+            assertNotNull(update);
+            String[] lines = update.split("\n");
+            String[] header = lines[0].split(" ");
+            assertEquals("update", header[0]);
+            assertEquals(lines.length - 1, Integer.parseInt(header[2]));
+            for (int i=1; i<lines.length; i++) {
+                String[] square = lines[i].split(" ");
+                char symbol = square[2].charAt(0);
+                board[2*(Integer.parseInt(square[0])*length + Integer.parseInt(square[1]))] =
+                        symbol == '0' ? ' ' : symbol;
+            }
+            version = Long.parseLong(header[1]);
+        }
+        return new String(board);
+    }
+    
+    /*
+     * Ticks that drop an idle feed race with connections subscribing and leaving without deadlocking, and a
+     * subscription made meanwhile still gets updates
+     */
+    @Test
+    public void feedChurnTest() throws InterruptedException {
+        final Board b = new Board(20, 1, 0.1);
+        final BoardFeed.Subscriber subscriber = new BoardFeed.Subscriber() {
+            public boolean push(byte[] update) {
+                return true;
+            }
+        };
+        final long end = System.nanoTime() + 1000000000L;
+        Thread[] threads = new Thread[4];
+        for (int t=0; t<threads.length; t++) {
+            final boolean ticker = t == 0;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i=0; System.nanoTime() < end; i++) {
+                        if (ticker) {
+                            BoardFeed feed = b.getFeed();
+                            if (feed != null)
+                                feed.run();
+                            continue;
+                        }
+                        BoardFeed.Subscription subscription = b.subscribe(subscriber);
+                        subscription.activate();
+                        b.flag(i % 20, (i / 20) % 20);
+                        subscription.cancel();
+                    }
+                }
+            });
+            threads[t].setDaemon(true);
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join(10000);
+            assertEquals(false, thread.isAlive());
+        }
+        
+        b.deflag(0, 0);
+        final CountDownLatch pushed = new CountDownLatch(1);
+        b.subscribe(new BoardFeed.Subscriber() {
+            public boolean push(byte[] update) {
+                pushed.countDown();
+                return true;
+            }
+        }).activate();
+        b.flag(0, 0);
+        assertEquals(true, pushed.await(5, TimeUnit.SECONDS));
+    }
+    
+    /*
+     * Looks at the same version share one encoded board message; a move makes a new one
+     */
+    @Test
+    public void sharedMessageTest() {
+        Board b = new Board("1 1 0\n1 0 0\n0 0 0\n");
+        String look = b.look();
+        assertEquals(true, look == b.look());
+        assertEquals(true, b.encode(look) == b.encode(b.look()));
+        assertEquals(true, b.encode(b.lookVersion()) == b.encode(b.lookVersion()));
+        assertEquals("version 0\n" + look, new String(b.encode(b.lookVersion())));
+        b.flag(2, 2);
+        assertEquals("- - -\n- - -\n- - F\n", b.look());
+        assertEquals(false, look == b.look());
+        assertEquals(look, new String(b.encode(look)));
+        b.flag(2, 2);
+        assertEquals(true, b.look() == b.flag(2, 2));
+    }
+    
+    @Test
+    public void outboxTest() {
+        Board b = new Board("0 0 0\n0 0 0\n0 0 1\n");
+        Outbox outbox = new Outbox(40, Long.MAX_VALUE);
+        for (int i=0; i<3; i++) {
+            String look = b.look();
+            assertEquals(true, outbox.offer(b.encode(look), b, b.coalescable(look), Board.PLAIN));
+            b.flag(i, i);
+        }
+        // The third look took the queue over the limit, so all three became the latest board message
+        assertEquals(false, outbox.isOver());
+        assertEquals(-1, b.coalescable(b.lookVersion()));
+        ByteBuffer[] taken = new ByteBuffer[8];
+        assertEquals(3, outbox.take(taken));
+        for (int i=0; i<3; i++) {
+            assertEquals("F - -\n- F -\n- - -\n", new String(taken[i].array()));
+        }
+        assertEquals(true, outbox.offer(new byte[10]));
+        // Taken responses are being written, so they are not swapped
+        assertEquals(true, outbox.offer(b.encode(b.flag(2, 2)), b, b.coalescable(b.look()), Board.PLAIN));
+        assertEquals("F - -\n- F -\n- - -\n", new String(taken[0].array()));
+        assertEquals(true, outbox.isOver());
+        assertEquals(false, outbox.isTooSlow());
+        for (int i=0; i<3; i++) {
+            taken[i].position(taken[i].limit());
+        }
+        outbox.written();
+        assertEquals(false, outbox.isOver());
+        assertEquals(2, outbox.take(taken));
+        taken[0].position(10);
+        outbox.written();
+        assertEquals(false, outbox.offer(new byte[80]));
+        outbox.clear();
+        assertEquals(true, outbox.isEmpty());
+        
+        // Coalescing uses the latest board message built, and does not build one for a move nobody looked at
+        String look = b.look();
+        assertEquals(true, outbox.offer(b.encode(look), b, b.coalescable(look), Board.PLAIN));
+        b.deflagDelta(0, 0);
+        assertEquals(true, outbox.offer(new byte[40]));
+        assertEquals(2, outbox.take(taken));
+        assertEquals(look, new String(taken[0].array()));
+        outbox.clear();
+        
+        Outbox impatient = new Outbox(40, 0);
+        assertEquals(true, impatient.offer(new byte[40]));
+        assertEquals(false, impatient.offer(new byte[1]));
+    }
+    
+    @Test
+    public void hintTest() {
+        // Squares nobody can see anything about are guessed at the density random boards are drawn with, not at the
+        // board's real count of bombs, which players do not know
+        Board b = new Board("1 0 1\n0 0 0\n0 0 0\n");
+        assertEquals("hint guess 0 0 0.250\n", b.hint());
+        b.dig(2, 1);
+        // (1,0) and (1,2) each see one bomb and (1,1) two, so the bombs are at (0,0) and (0,2)
+        assertEquals("hint safe 0 1\n", b.hint());
+        assertEquals(true, b.hint() == b.hint());
+        b.flag(0, 0);
+        Session session = new Session(new RoomRegistry(b, 1, 0).getDefault());
+        assertEquals("hint safe 0 1\n", MinesweeperServer.handleRequest("hint", session));
+        b.dig(0, 1);
+        assertEquals("hint guess 0 2 1.000\n", b.hint());
+        b.dig(0, 2);
+        assertEquals("hint none\n", b.hint());
+        
+        // A square away from the frontier is suggested again once deflagged
+        Board open = new Board("1 0 0\n0 0 0\n0 0 0\n");
+        assertEquals("hint guess 0 0 0.250\n", open.hint());
+        open.flag(0, 0);
+        assertEquals("hint guess 0 1 0.250\n", open.hint());
+        open.deflag(0, 0);
+        assertEquals("hint guess 0 0 0.250\n", open.hint());
+        assertEquals("hint guess 0 0 0.150\n", new Board(24, 5, 0.15).hint());
+        
+        // Play by the hints, checking each against a solver that starts from scratch
+        int[] kinds = new int[80];
+        int[] xs = new int[80];
+        int[] ys = new int[80];
+        Board game = new Board(24, 5, 0.15);
+        for (int turn=0; turn<kinds.length; turn++) {
+            String hint = game.hint();
+            Board fresh = new Board(24, 5, 0.15);
+            fresh.batch(kinds, xs, ys, turn, false, false);
+            assertEquals(fresh.hint(), hint);
+            if (hint.equals("hint none\n"))
+                break;
+            String[] words = hint.trim().split(" ");
+            xs[turn] = Integer.parseInt(words[2]);
+            ys[turn] = Integer.parseInt(words[3]);
+            kinds[turn] = Board.MOVE_DIG;
+            if (words[1].equals("safe"))
+                assertEquals(false, game.getCell(xs[turn], ys[turn]).hasBomb());
+            else if (turn % 3 == 0)
+                kinds[turn] = Board.MOVE_FLAG;
+            if (kinds[turn] == Board.MOVE_DIG)
+                game.dig(xs[turn], ys[turn]);
+            else
+                game.flag(xs[turn], ys[turn]);
+        }
+    }
+    
+    @Test
+    public void encodingTest() throws DataFormatException {
+        Board b = new Board("1 1 0 0 0\n1 0 0 0 0\n1 0 1 0 0\n1 0 0 0 0\n1 1 0 0 0\n");
+        b.dig(0, 4);
+        b.flag(1, 1);
+        String rle = "-2 1 .2\n- F 2 1 .\n-3 1 .\n-2 2 1 .\n-2 1 .2\n";
+        assertEquals(rle, b.rle(b.look()));
+        assertEquals("version 2\n" + rle, b.rle(b.lookVersion()));
+        assertEquals("F 2\n", b.rle(b.look(1, 1, 2, 1)));
+        assertEquals("BOOM!\n", b.rle("BOOM!\n"));
+        // Short answers stay plain
+        assertEquals(b.look(), new String(b.encode(b.look(), Board.DEFLATE)));
+        
+        Session session = new Session(new RoomRegistry(b, 1, 0).getDefault());
+        assertEquals(rle, MinesweeperServer.handleRequest("encoding rle", session));
+        assertEquals("-2 1 .2\n- F 2 1 .\n-3 1 .\n-2 2 1 .\n-2 1 .2\n",
+                MinesweeperServer.handleRequest("look", session));
+        assertEquals("F 2\n", MinesweeperServer.handleRequest("look 1 1 2 1", session));
+        assertEquals(b.look(), MinesweeperServer.handleRequest("encoding plain", session));
+        assertEquals(null, MinesweeperServer.handleRequest("encoding zip", session));
+        
+        Board big = new Board(200, 1, 0.25);
+        big.dig(100, 100);
+        byte[] frame = big.encode(big.look(), Board.DEFLATE);
+        String header = new String(frame, 0, 20).split("\n")[0];
+        assertEquals(true, header.startsWith("deflate "));
+        int n = Integer.parseInt(header.substring("deflate ".length()));
+        assertEquals(header.length() + 1 + n, frame.length);
+        assertEquals(true, frame.length < big.look().length() / 4);
+        Inflater inflater = new Inflater();
+        inflater.setInput(frame, header.length() + 1, n);
+        byte[] inflated = new byte[big.look().length()];
+        assertEquals(inflated.length, inflater.inflate(inflated));
+        assertEquals(true, inflater.finished());
+        assertEquals(big.look(), new String(inflated));
+        assertEquals(true, frame == big.encode(big.look(), Board.DEFLATE));
+    }
+    
+    /*
+     * Looks during a flood fill do not wait for it; they see the board as it was before the flood
+     */
+    @Test
+    public void lookDuringFloodTest() throws InterruptedException {
+        final Board b = new Board(1500, 1, 0);
+        b.flag(1499, 1499);
+        final String before = b.look();
+        Thread flood = new Thread(new Runnable() {
+            public void run() {
+                b.dig(0, 0);
+            }
+        });
+        flood.start();
+        Thread.sleep(5);
+        int looks = 0;
+        while (flood.isAlive()) {
+            String look = b.look();
+            // The flood thread outlives the move while dig builds its answer, so the new board may show up too
+            if (look == before)
+                looks++;
+            else
+                assertEquals(' ', look.charAt(0));
+        }
+        assertEquals(true, looks > 0);
+        assertEquals(' ', b.look().charAt(0));
+    }
+    
+    /*
+     * Looks while other threads flag see whole moves: every flag bumps the version by one, so a look at version V
+     * shows exactly V flags
+     */
+    @Test
+    public void lookDuringMovesTest() throws InterruptedException {
+        final Board b = new Board(100, 1, 0);
+        Thread[] threads = new Thread[4];
+        for (int t=0; t<threads.length; t++) {
+            final int row = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i=0; i<2500; i++) {
+                        b.flag(row + 4*(i / 100), i % 100);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        int looks = 0;
+        while (b.getVersion() < 10000) {
+            String look = b.lookVersion();
+            int newline = look.indexOf('\n');
+            long version = Long.parseLong(look.substring("version ".length(), newline));
+            int flags = 0;
+            for (int i=newline; i<look.length(); i++) {
+                if (look.charAt(i) == 'F')
+                    flags++;
+            }
+            assertEquals(version, flags);
+            looks++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(true, looks > 0);
+    }
+    
+    /*
+     * A flood fill split across the fork-join pool digs the same squares, with the same counts, as one on a single
+     * thread, on eager and lazy boards
+     */
+    @Test
+    public void parallelFloodTest() {
+        Board[] parallel = { new Board(400, 3, 0.03), Board.lazy(400, 3, 0.03) };
+        for (Board b : parallel) {
+            Board sequential = new Board(400, 3, 0.03);
+            sequential.setParallelFlood(0);
+            b.setParallelFlood(16);
+            b.flag(200, 201);
+            sequential.flag(200, 201);
+            String delta = b.digDelta(200, 200);
+            String expected = sequential.digDelta(200, 200);
+            assertEquals(true, expected.split("\n").length > 1000);
+            Set<String> squares = new HashSet<String>(Arrays.asList(delta.split("\n")));
+            assertEquals(new HashSet<String>(Arrays.asList(expected.split("\n"))), squares);
+            for (int i=0; i<400; i+=37) {
+                assertEquals(sequential.dig(i, 399-i), b.dig(i, 399-i));
+            }
+            assertEquals(sequential.getVersion(), b.getVersion());
+        }
+    }
+    
+    @Test
+    public void latencyHistogramTest() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(0.5));
+        for (int i=1; i<=1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        // Buckets are about 3% wide, so percentiles are exact to within that
+        assertEquals(500000, histogram.getPercentile(0.5), 500000 * 0.04);
+        assertEquals(990000, histogram.getPercentile(0.99), 990000 * 0.04);
+        assertEquals(1000000, histogram.getPercentile(1));
+
+        LatencyHistogram other = new LatencyHistogram();
+        other.record(5000000);
+        histogram.add(other);
+        assertEquals(1001, histogram.getCount());
+        assertEquals(5000000, histogram.getPercentile(1));
+        
+        // The top bucket holds the largest longs
+        LatencyHistogram extremes = new LatencyHistogram();
+        extremes.record(1L << 62);
+        extremes.record(Long.MAX_VALUE);
+        assertEquals(2, extremes.getCount());
+        assertEquals(Long.MAX_VALUE, extremes.getMax());
+        assertEquals(Long.MAX_VALUE, extremes.getPercentile(1));
+        assertEquals(1L << 62, extremes.getPercentile(0.5), (1L << 62) * 0.04);
+    }
+
     /*
      * Test that runs the server
      */
@@ -116,6 +850,215 @@ public class BoardTest {
         }
     }
     
+    /*
+     * Requests pipelined to the nio engine faster than they are answered are each answered from their own text,
+     * even while the selector thread keeps reading more of them into the same buffer
+     */
+    @Test
+    public void nioPipelineTest() throws InterruptedException, IOException {
+        startServer("nio", 4446, new String[] {"true", "-s", "5"});
+        final int REQUESTS = 20000;
+        final Socket socket = new Socket("127.0.0.1", 4446);
+        try {
+            socket.setSoTimeout(5000);
+            BufferedReader inputBuffer = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            assertEquals(true, nextNonEmptyLine(inputBuffer).startsWith("Welcome"));
+            Thread writer = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        PrintWriter outputWriter = new PrintWriter(socket.getOutputStream());
+                        for (int i=0; i<REQUESTS; i++) {
+                            outputWriter.print("join missing-" + i + "\n");
+                            if (i % 64 == 0)
+                                outputWriter.flush();
+                        }
+                        outputWriter.flush();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            writer.start();
+            for (int i=0; i<REQUESTS; i++) {
+                assertEquals("No room named missing-" + i, nextNonEmptyLine(inputBuffer));
+            }
+            writer.join();
+        } finally {
+            socket.close();
+        }
+    }
+    
+    /*
+     * create -f only loads boards from the board directory, and answers the same whichever file outside it is named
+     */
+    @Test
+    public void createRoomTest() throws InterruptedException, IOException {
+        startServer("thread", 4447, new String[] {"true", "-s", "5"});
+        Socket socket = new Socket("127.0.0.1", 4447);
+        try {
+            socket.setSoTimeout(3000);
+            BufferedReader inputBuffer = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter outputWriter = new PrintWriter(socket.getOutputStream(), true);
+            assertEquals(true, nextNonEmptyLine(inputBuffer).startsWith("Welcome"));
+            String[] outside = { "../inputs/board1", "inputs/../board1", "/etc/passwd", "missing", "." };
+            for (String file : outside) {
+                outputWriter.println("create elsewhere -f " + file);
+                assertEquals("No board named " + file, nextNonEmptyLine(inputBuffer));
+            }
+            outputWriter.println("create tiny -s 0");
+            assertEquals("Rooms must be 1 to 1000 squares wide", nextNonEmptyLine(inputBuffer));
+            outputWriter.println("create huge -s 99999999999");
+            assertEquals("Rooms must be 1 to 1000 squares wide", nextNonEmptyLine(inputBuffer));
+            outputWriter.println("create saved -f board1");
+            for (int i=0; i<6; i++) {
+                assertEquals("- - - - - -", nextNonEmptyLine(inputBuffer));
+            }
+        } finally {
+            socket.close();
+        }
+    }
+    
+    /*
+     * Each engine greets a client, answers look and dig, disconnects it after a BOOM when not in debug mode, and
+     * closes the connection on bye
+     */
+    @Test
+    public void loopbackTest() throws InterruptedException, IOException {
+        String[] engines = { "thread", "nio" };
+        for (int i=0; i<engines.length; i++) {
+            int port = 4450 + i;
+            startServer(engines[i], port, new String[] {"false", "-f", "inputs/board1"});
+            Socket socket = new Socket("127.0.0.1", port);
+            try {
+                socket.setSoTimeout(3000);
+                BufferedReader inputBuffer = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter outputWriter = new PrintWriter(socket.getOutputStream(), true);
+                assertEquals(true, nextNonEmptyLine(inputBuffer).startsWith("Welcome"));
+                outputWriter.println("look");
+                for (int row=0; row<6; row++) {
+                    assertEquals("- - - - - -", nextNonEmptyLine(inputBuffer));
+                }
+                outputWriter.println("dig 0 0");
+                assertEquals("1 - - - - -", nextNonEmptyLine(inputBuffer));
+                for (int row=1; row<6; row++) {
+                    assertEquals("- - - - - -", nextNonEmptyLine(inputBuffer));
+                }
+                outputWriter.println("dig 3 1");
+                assertEquals("BOOM!", nextNonEmptyLine(inputBuffer));
+                assertEquals(null, nextNonEmptyLine(inputBuffer));
+            } finally {
+                socket.close();
+            }
+            
+            socket = new Socket("127.0.0.1", port);
+            try {
+                socket.setSoTimeout(3000);
+                BufferedReader inputBuffer = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter outputWriter = new PrintWriter(socket.getOutputStream(), true);
+                assertEquals(true, nextNonEmptyLine(inputBuffer).startsWith("Welcome"));
+                outputWriter.println("look");
+                assertEquals("1 - - - - -", nextNonEmptyLine(inputBuffer));
+                for (int row=1; row<6; row++) {
+                    nextNonEmptyLine(inputBuffer);
+                }
+                outputWriter.println("bye");
+                assertEquals(null, nextNonEmptyLine(inputBuffer));
+            } finally {
+                socket.close();
+            }
+        }
+    }
+    
+    /*
+     * A client that keeps asking for windows of the board without reading the answers is dropped once it stays over
+     * its queue's limit, by either engine
+     */
+    @Test
+    public void slowClientTest() throws InterruptedException, IOException {
+        String[] engines = { "thread", "nio" };
+        for (int i=0; i<engines.length; i++) {
+            int port = 4448 + i;
+            System.setProperty("minesweeper.maxQueuedBytes", "65536");
+            System.setProperty("minesweeper.slowClientMillis", "200");
+            try {
+                startServer(engines[i], port, new String[] {"true", "-s", "100"});
+            } finally {
+                System.clearProperty("minesweeper.maxQueuedBytes");
+                System.clearProperty("minesweeper.slowClientMillis");
+            }
+            long dropped = Metrics.get().getSlowClientsDropped();
+            final Socket socket = new Socket();
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress("127.0.0.1", port));
+            try {
+                Thread writer = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            PrintWriter outputWriter = new PrintWriter(socket.getOutputStream());
+                            for (int j=0; j<100000 && !outputWriter.checkError(); j++) {
+                                outputWriter.print("look 0 0 100 100\n");
+                                if (j % 16 == 0)
+                                    outputWriter.flush();
+                            }
+                        } catch (IOException e) {
+                            // The server dropped the connection
+                        }
+                    }
+                });
+                writer.start();
+                for (int wait=0; wait<500 && Metrics.get().getSlowClientsDropped() == dropped; wait++) {
+                    Thread.sleep(20);
+                }
+                assertEquals(dropped + 1, Metrics.get().getSlowClientsDropped());
+                // What the server wrote before dropping the client is followed by the end of the stream
+                socket.setSoTimeout(5000);
+                InputStream in = socket.getInputStream();
+                byte[] buffer = new byte[1 << 16];
+                try {
+                    while (in.read(buffer) >= 0) {
+                    }
+                } catch (SocketException e) {
+                    // Reset by the server, which closed the connection with requests unread
+                }
+                writer.join(5000);
+                assertEquals(false, writer.isAlive());
+            } finally {
+                socket.close();
+            }
+        }
+    }
+    
+    /*
+     * A client of the thread engine that stops reading in the middle of one long answer is dropped too, even though
+     * its queue never goes over the limit, so it does not keep a shared writer thread blocked
+     */
+    @Test
+    public void stalledWriteTest() throws InterruptedException, IOException {
+        int port = 4453;
+        System.setProperty("minesweeper.maxQueuedBytes", Integer.toString(1 << 26));
+        System.setProperty("minesweeper.slowClientMillis", "200");
+        try {
+            startServer("thread", port, new String[] {"true", "-s", "3000"});
+        } finally {
+            System.clearProperty("minesweeper.maxQueuedBytes");
+            System.clearProperty("minesweeper.slowClientMillis");
+        }
+        long dropped = Metrics.get().getSlowClientsDropped();
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(4096);
+        socket.connect(new InetSocketAddress("127.0.0.1", port));
+        try {
+            PrintWriter outputWriter = new PrintWriter(socket.getOutputStream(), true);
+            outputWriter.println("look");
+            for (int wait=0; wait<500 && Metrics.get().getSlowClientsDropped() == dropped; wait++) {
+                Thread.sleep(20);
+            }
+            assertEquals(dropped + 1, Metrics.get().getSlowClientsDropped());
+        } finally {
+            socket.close();
+        }
+    }
+    
     /*
      * Digs the same square multiple times
      */
@@ -266,6 +1209,47 @@ public class BoardTest {
         }
     }
     
+    /*
+     * Threads flagging and digging on different parts of a large board hold different stripes and run at the same
+     * time. Every move must still land, and the version must count every move that changed a square.
+     */
+    @Test
+    public void stripedMovesTest() throws InterruptedException {
+        final int len = 256;
+        StringBuilder input = new StringBuilder();
+        for (int i=0; i<len; i++) {
+            for (int j=0; j<len; j++) {
+                input.append(j == 0 ? "" : " ").append(j == len-1 ? "1" : "0");
+            }
+            input.append("\n");
+        }
+        final Board board = new Board(input.toString());
+        Thread[] threads = new Thread[8];
+        for (int t=0; t<threads.length; t++) {
+            final int first = t * (len/threads.length);
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i=first; i<first + len/8; i++) {
+                        board.flag(i, 0);
+                        board.deflag(i, 0);
+                        board.flag(i, 0);
+                        board.dig(i, len-2);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int i=0; i<len; i++) {
+            assertEquals(Cell.Type.FLAG, board.getCell(i, 0).getStatus());
+            assertEquals(Cell.Type.DUG, board.getCell(i, len-2).getStatus());
+            assertEquals(i == 0 || i == len-1 ? 2 : 3, board.getCell(i, len-2).getCount());
+        }
+        assertEquals(4*len, board.getVersion());
+    }
+    
     // Wrong board input
     @Test(expected=RuntimeException.class)
     public void ExtraColumn() {
@@ -300,6 +1284,231 @@ public class BoardTest {
         } 
     }
     
+    // Bad input file, loaded through the memory map
+    @Test(expected=RuntimeException.class)
+    public void badMappedInputFile() throws IOException {
+        new Board(new File("inputs/board2"));
+    }
+    
+    /*
+     * Loading a file through the memory map gives the same board, and the same errors, as loading its text
+     */
+    @Test
+    public void mappedFileTest() throws IOException {
+        Board mapped = new Board(new File("inputs/board1"));
+        Board text = new Board(MinesweeperServer.readContent(new File("inputs/board1")));
+        mapped.dig(2, 2);
+        text.dig(2, 2);
+        assertEquals(text.look(), mapped.look());
+        
+        File file = tempFile(".txt");
+        String[] inputs = { "1 0\r\n0 0\r\n\n", "1 0\n\n0 0\n", "1 0\n0 0\n0 0\n", "1 0 \n0 2", "1 0\n0  0" };
+        for (String input : inputs) {
+            Files.write(file.toPath(), input.getBytes());
+            assertEquals(lookAtFile(file, false), lookAtFile(file, true));
+        }
+    }
+    
+    /**
+     * @param file board file
+     * @param mapped true to load it through the memory map, false to load its text
+     * @return what look answers on the board loaded from file, or the message of the error loading it
+     */
+    private static String lookAtFile(File file, boolean mapped) throws IOException {
+        try {
+            return (mapped ? new Board(file) : new Board(MinesweeperServer.readContent(file))).look();
+        } catch (RuntimeException e) {
+            return e.getMessage();
+        }
+    }
+    
+    /**
+     * @param suffix end of the file's name
+     * @return a new empty file, deleted when the tests end
+     */
+    private static File tempFile(String suffix) throws IOException {
+        File file = File.createTempFile("board", suffix);
+        file.deleteOnExit();
+        return file;
+    }
+    
+    /*
+     * A snapshot restores the squares, what has been dug and flagged, and the version; a damaged one is refused
+     */
+    @Test
+    public void snapshotTest() throws IOException {
+        Board b = new Board("1 1 0 0 0\n1 0 0 0 0\n1 0 1 0 0\n1 0 0 0 0\n1 1 0 0 0\n");
+        b.dig(2, 2);
+        b.flag(0, 0);
+        File file = tempFile(".snapshot");
+        b.save(file);
+        Board restored = BoardSnapshot.read(file);
+        assertEquals(b.look(), restored.look());
+        assertEquals(b.getVersion(), restored.getVersion());
+        assertEquals(true, restored.getCell(0, 0).hasBomb());
+        assertEquals("BOOM!\n", restored.dig(0, 1));
+        
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        bytes[30] ^= 0x04;
+        Files.write(file.toPath(), bytes);
+        try {
+            BoardSnapshot.read(file);
+            fail("expected a checksum mismatch");
+        } catch (IOException e) {
+            assertEquals(true, e.getMessage().contains("checksum"));
+        }
+    }
+    
+    /*
+     * A server is not started with snapshots of a lazy board, which cannot be saved
+     */
+    @Test
+    public void lazySnapshotTest() throws IOException {
+        System.setProperty("minesweeper.lazySize", "64");
+        System.setProperty("minesweeper.snapshot", tempFile(".snapshot").getPath());
+        try {
+            MinesweeperServer.runMinesweeperServer(false, null, 100, null, 4452);
+            fail("expected the snapshot to be refused");
+        } catch (IllegalArgumentException e) {
+            assertEquals(true, e.getMessage().contains("lazily"));
+        } finally {
+            System.clearProperty("minesweeper.lazySize");
+            System.clearProperty("minesweeper.snapshot");
+        }
+    }
+    
+    /*
+     * Replaying the journal onto the starting board, or onto a snapshot taken part way, rebuilds the same board,
+     * and a torn group at the end of the journal is dropped. A journal is refused for another board, and after
+     * compaction for a board older than the snapshot it was compacted to. A server with a random board is not
+     * started with a journal unless its seed is set
+     */
+    @Test
+    public void journalTest() throws IOException {
+        String input = "1 1 0 0 0\n1 0 0 0 0\n1 0 1 0 0\n1 0 0 0 0\n1 1 0 0 0\n";
+        File journal = tempFile(".journal");
+        File snapshot = tempFile(".snapshot");
+        Board b = new Board(input);
+        MoveJournal.open(journal, b);
+        b.flag(0, 0);
+        b.dig(4, 4);
+        b.save(snapshot);
+        b.dig(0, 1);
+        b.flag(1, 0);
+        b.flag(1, 0);
+        b.deflag(0, 0);
+        MoveJournal.awaitDurable();
+        
+        Files.write(journal.toPath(), new byte[] { 0, 0, 0, 17, 1, 2 },
+                StandardOpenOption.APPEND);
+        Board replayed = new Board(input);
+        MoveJournal.open(journal, replayed);
+        assertEquals(b.look(), replayed.look());
+        assertEquals(b.getVersion(), replayed.getVersion());
+        
+        Board restored = BoardSnapshot.read(snapshot);
+        MoveJournal.open(journal, restored);
+        assertEquals(b.look(), restored.look());
+        assertEquals(b.getVersion(), restored.getVersion());
+        
+        // A journal is refused for a board with other bombs
+        try {
+            MoveJournal.open(journal, new Board(input.replace("1 0 1", "1 1 1")));
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertEquals(true, e.getMessage().contains("another board"));
+        }
+        
+        // Once compacted to a snapshot, the journal replays from that snapshot but not from the older board
+        MoveJournal compacted = MoveJournal.open(journal, BoardSnapshot.read(snapshot));
+        compacted.compact(2);
+        // The header, then one group of the three moves after version 2
+        assertEquals(28 + 8 + 3*17, journal.length());
+        try {
+            MoveJournal.open(journal, new Board(input));
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertEquals(true, e.getMessage().contains("starts from version 2"));
+        }
+        Board again = BoardSnapshot.read(snapshot);
+        MoveJournal.open(journal, again);
+        assertEquals(b.look(), again.look());
+        assertEquals(b.getVersion(), again.getVersion());
+        
+        // A random board is only journaled with a seed, so a restart gets the same board back
+        System.setProperty("minesweeper.journal", tempFile(".journal").getPath());
+        try {
+            MinesweeperServer.runMinesweeperServer(false, null, 10, null, 4454);
+            fail("expected the journal to be refused");
+        } catch (IllegalArgumentException e) {
+            assertEquals(true, e.getMessage().contains("minesweeper.seed"));
+        } finally {
+            System.clearProperty("minesweeper.journal");
+        }
+    }
+    
+    /*
+     * A lazy board gives the same squares for the same seed, plays like an eager board with those squares, floods
+     * across chunk borders, and shows chunks nobody has reached as untouched
+     */
+    @Test
+    public void lazyBoardTest() {
+        Board lazy = Board.lazy(130, 7, 0.1);
+        Board again = Board.lazy(130, 7, 0.1);
+        StringBuilder input = new StringBuilder();
+        for (int x=0; x<130; x++) {
+            for (int y=0; y<130; y++) {
+                assertEquals(again.getCell(x, y).hasBomb(), lazy.getCell(x, y).hasBomb());
+                input.append(lazy.getCell(x, y).hasBomb() ? "1" : "0").append(y == 129 ? "\n" : " ");
+            }
+        }
+        Board eager = new Board(input.toString());
+        for (int i=0; i<130; i+=7) {
+            assertEquals(eager.dig(i, 129-i), lazy.dig(i, 129-i));
+            assertEquals(eager.flag(129-i, i), lazy.flag(129-i, i));
+        }
+        assertEquals(eager.look(), lazy.look());
+        assertEquals(eager.getVersion(), lazy.getVersion());
+        
+        Board empty = Board.lazy(200, 1, 0);
+        assertEquals("-", empty.look().substring(0, 1));
+        empty.dig(0, 0);
+        assertEquals(" ", empty.look().substring(2*199*200 + 2*199, 2*199*200 + 2*199 + 1));
+        
+        Board huge = Board.lazy(100000, 1, 0.25);
+        assertEquals(true, huge.look().startsWith("Board too large to look at"));
+        huge.flag(99999, 99999);
+        assertEquals(Cell.Type.FLAG, huge.getCell(99999, 99999).getStatus());
+    }
+    
+    /*
+     * The same seed gives the same board whether it is generated eagerly, in parallel, or lazily
+     */
+    @Test
+    public void seededBoardTest() {
+        Board b = new Board(1000, 42, 0.25);
+        Board again = new Board(1000, 42, 0.25);
+        Board lazy = Board.lazy(1000, 42, 0.25);
+        Board other = new Board(1000, 43, 0.25);
+        int bombs = 0;
+        boolean differs = false;
+        for (int x=0; x<1000; x+=3) {
+            for (int y=0; y<1000; y+=7) {
+                boolean bomb = b.getCell(x, y).hasBomb();
+                assertEquals(bomb, again.getCell(x, y).hasBomb());
+                assertEquals(bomb, lazy.getCell(x, y).hasBomb());
+                differs |= bomb != other.getCell(x, y).hasBomb();
+                bombs += bomb ? 1 : 0;
+            }
+        }
+        assertEquals(true, differs);
+        assertEquals(0.25, bombs / (334.0 * 143), 0.02);
+        assertEquals(new Board(130, 5, 0.1).look(), new Board(130, 5, 0.1).look());
+        b.dig(500, 500);
+        again.dig(500, 500);
+        assertEquals(b.look(), again.look());
+    }
+    
     private String nextNonEmptyLine(BufferedReader in) throws IOException {
         while (true) {
           String ret = in.readLine();
@@ -308,6 +1517,33 @@ public class BoardTest {
         }
     }
       
+    /**
+     * Starts a server on its own port and waits until it accepts connections
+     * @param engine "thread" or "nio", see MinesweeperServer
+     * @param port port to listen on, other than the 4444 of startServer(String[])
+     * @param args command-line arguments, as for MinesweeperServer.main
+     */
+    private static void startServer(String engine, int port, String args[]) throws InterruptedException {
+        System.setProperty("minesweeper.engine", engine);
+        System.setProperty("minesweeper.customport", Integer.toString(port));
+        try {
+            startServer(args);
+            for (int attempt=0; ; attempt++) {
+                try {
+                    new Socket("127.0.0.1", port).close();
+                    return;
+                } catch (IOException e) {
+                    if (attempt == 100)
+                        throw new RuntimeException(e);
+                    Thread.sleep(20);
+                }
+            }
+        } finally {
+            System.clearProperty("minesweeper.engine");
+            System.clearProperty("minesweeper.customport");
+        }
+    }
+    
     private static void startServer(String args[]) {
         final String myArgs[] = args;
         new Thread(new Runnable() {
@@ -1,5 +1,7 @@
 package minesweeper.server;
 
+import java.util.concurrent.ThreadLocalRandom;
+
 public class Cell {
     public static enum Type {
         DUG, FLAG, UNTOUCHED
@@ -9,7 +11,7 @@ public class Cell {
     private int neighborBombs;
     
     public Cell() {   
-        if (Math.random()<0.25)
+        if (ThreadLocalRandom.current().nextDouble()<0.25)
             this.bomb = true;
         else
             this.bomb = false;
@@ -22,6 +24,18 @@ public class Cell {
             this.bomb = false;
     }
     
+    /**
+     * View of a square read out of a Board
+     * @param bomb whether the square has a bomb
+     * @param status status of the square
+     * @param neighborBombs number of bombs in the neighboring squares
+     */
+    Cell(boolean bomb, Type status, int neighborBombs) {
+        this.bomb = bomb;
+        this.status = status;
+        this.neighborBombs = neighborBombs;
+    }
+    
     public boolean hasBomb() {
         return this.bomb;
     }
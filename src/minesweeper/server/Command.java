@@ -0,0 +1,342 @@
+package minesweeper.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * One parsed request line. A connection reuses the same Command for every line it reads, so parsing the common
+ * requests (look, dig, flag, deflag, help, bye, stats, subscribe, hint) allocates nothing. Requests that are rare and carry names or paths
+ * (delta, join, create, encoding) are copied into a String when parsed, since the buffer the line was read into may
+ * be reused before they are handled.
+ * The moves of a batch request are parsed into arrays that are reused from line to line.
+ * 
+ * A Command is only used by the thread serving its connection, so it needs no synchronization.
+ */
+public class Command {
+    public static final int INVALID = 0;
+    public static final int LOOK = 1;
+    public static final int DIG = 2;
+    public static final int FLAG = 3;
+    public static final int DEFLAG = 4;
+    public static final int HELP = 5;
+    public static final int BYE = 6;
+    /** A request handled from its text, see text(). */
+    public static final int OTHER = 7;
+    /** Several moves applied together, see Board.batch. */
+    public static final int BATCH = 8;
+    /** The server's metrics report, see Metrics.report. */
+    public static final int STATS = 9;
+    /** A look at a window of the board, see Board.look(int, int, int, int). */
+    public static final int VIEW = 10;
+    /** Start or stop pushed updates of the board, see BoardFeed. */
+    public static final int SUBSCRIBE = 11;
+    public static final int UNSUBSCRIBE = 12;
+    /** A safe square or the best guess to dig, see Board.hint. */
+    public static final int HINT = 13;
+    
+    private static final byte[] LOOK_WORD = word("look");
+    private static final byte[] DIG_WORD = word("dig");
+    private static final byte[] FLAG_WORD = word("flag");
+    private static final byte[] DEFLAG_WORD = word("deflag");
+    private static final byte[] HELP_WORD = word("help");
+    private static final byte[] BYE_WORD = word("bye");
+    private static final byte[] STATS_WORD = word("stats");
+    private static final byte[] SUBSCRIBE_WORD = word("subscribe");
+    private static final byte[] UNSUBSCRIBE_WORD = word("unsubscribe");
+    private static final byte[] HINT_WORD = word("hint");
+    private static final byte[] BATCH_WORD = word("batch");
+    private static final byte[] STOP_WORD = word("stop");
+    private static final byte[][] OTHER_WORDS = { word("delta"), word("join"), word("create"), word("encoding") };
+    
+    private int op = INVALID;
+    private int x;
+    private int y;
+    private int width;
+    private int height;
+    private byte[] line;
+    private int start;
+    private int end;
+    /** The request line of an OTHER request, null for the others. */
+    private String text;
+    /** Index of the next byte to read while parsing. */
+    private int pos;
+    // Moves of a batch, using the Board.MOVE_ kinds; reused from line to line
+    private int moves;
+    private int[] kinds = new int[16];
+    private int[] xs = new int[16];
+    private int[] ys = new int[16];
+    private boolean stopAtBoom;
+    
+    /**
+     * @return one of the request constants
+     */
+    public int getOp() {
+        return this.op;
+    }
+    
+    public int getX() {
+        return this.x;
+    }
+    
+    public int getY() {
+        return this.y;
+    }
+    
+    /**
+     * @return number of columns a VIEW request looks at
+     */
+    public int getWidth() {
+        return this.width;
+    }
+    
+    /**
+     * @return number of rows a VIEW request looks at
+     */
+    public int getHeight() {
+        return this.height;
+    }
+    
+    /**
+     * @return number of moves in a BATCH request
+     */
+    public int getMoveCount() {
+        return this.moves;
+    }
+    
+    /**
+     * @return Board.MOVE_ kind of each move of a BATCH request; only the first getMoveCount() are meaningful
+     */
+    public int[] getMoveKinds() {
+        return this.kinds;
+    }
+    
+    public int[] getMoveXs() {
+        return this.xs;
+    }
+    
+    public int[] getMoveYs() {
+        return this.ys;
+    }
+    
+    /**
+     * @return true if a BATCH request should skip its moves after the first BOOM
+     */
+    public boolean isStopAtBoom() {
+        return this.stopAtBoom;
+    }
+    
+    /**
+     * @return the request line, for OTHER requests
+     */
+    public String text() {
+        return this.text;
+    }
+    
+    /**
+     * Parses one request line, following the same grammar as the regex in MinesweeperServer.handleRequest:
+     * a command word, and for dig, flag and deflag two decimal numbers, each preceded by exactly one space.
+     * Numbers too big for an int are read as Integer.MAX_VALUE, which is off every board.
+     * 
+     * A look may be followed by four such numbers, X Y W H, to look at a window of the board; W and H must not
+     * be 0.
+     * 
+     * A batch request follows the grammar
+     * 
+     * BATCH :== "batch" (SPACE "stop")? SPACE MOVE (";" SPACE? MOVE)*
+     * MOVE :== ("dig" | "flag" | "deflag") SPACE NUMBER SPACE NUMBER
+     * 
+     * @param line buffer holding the line; only read during the call
+     * @param start index of the first byte of the line
+     * @param end index just past the last byte of the line, not counting the newline
+     * @return this command
+     */
+    public Command parse(byte[] line, int start, int end) {
+        this.line = line;
+        this.start = start;
+        this.end = end;
+        this.op = INVALID;
+        this.text = null;
+        this.pos = start;
+        if (equals(line, start, end, LOOK_WORD)) {
+            this.op = LOOK;
+        } else if (startsWord(line, start, end, LOOK_WORD)) {
+            parseView();
+        } else if (equals(line, start, end, HELP_WORD)) {
+            this.op = HELP;
+        } else if (equals(line, start, end, BYE_WORD)) {
+            this.op = BYE;
+        } else if (equals(line, start, end, STATS_WORD)) {
+            this.op = STATS;
+        } else if (equals(line, start, end, SUBSCRIBE_WORD)) {
+            this.op = SUBSCRIBE;
+        } else if (equals(line, start, end, UNSUBSCRIBE_WORD)) {
+            this.op = UNSUBSCRIBE;
+        } else if (equals(line, start, end, HINT_WORD)) {
+            this.op = HINT;
+        } else if (startsWord(line, start, end, BATCH_WORD)) {
+            parseBatch();
+        } else {
+            int kind = readMove();
+            if (kind >= 0 && pos == end) {
+                this.op = kind == Board.MOVE_DIG ? DIG : kind == Board.MOVE_FLAG ? FLAG : DEFLAG;
+                this.x = xs[0];
+                this.y = ys[0];
+            } else if (kind < 0) {
+                for (byte[] word : OTHER_WORDS) {
+                    if (startsWord(line, start, end, word))
+                        this.op = OTHER;
+                }
+                if (this.op == OTHER)
+                    this.text = new String(line, start, end-start, StandardCharsets.US_ASCII);
+            }
+        }
+        return this;
+    }
+    
+    /**
+     * Reads the window of a look request and sets op if it is well formed
+     */
+    private void parseView() {
+        pos += LOOK_WORD.length;
+        int x = readArgument();
+        int y = readArgument();
+        int width = readArgument();
+        int height = readArgument();
+        if (height < 0 || pos != end || width == 0 || height == 0)
+            return;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.op = VIEW;
+    }
+    
+    /**
+     * Reads a space and a decimal number at pos, leaving pos just past them; does nothing once one has failed
+     * @return the number, capped at Integer.MAX_VALUE, or -1 if there is no space and number at pos
+     */
+    private int readArgument() {
+        if (pos < 0 || pos >= end || line[pos] != ' ') {
+            pos = -1;
+            return -1;
+        }
+        pos++;
+        int value = readNumber();
+        if (value < 0)
+            pos = -1;
+        return value;
+    }
+    
+    /**
+     * Reads the moves of a batch request and sets op if they are well formed
+     */
+    private void parseBatch() {
+        pos += BATCH_WORD.length + 1;
+        stopAtBoom = startsWord(line, pos, end, STOP_WORD);
+        if (stopAtBoom)
+            pos += STOP_WORD.length + 1;
+        moves = 0;
+        while (true) {
+            if (moves == kinds.length) {
+                kinds = Arrays.copyOf(kinds, 2*moves);
+                xs = Arrays.copyOf(xs, 2*moves);
+                ys = Arrays.copyOf(ys, 2*moves);
+            }
+            int kind = readMove(moves);
+            if (kind < 0)
+                return;
+            kinds[moves++] = kind;
+            if (pos == end)
+                break;
+            if (line[pos] != ';')
+                return;
+            pos++;
+            if (pos < end && line[pos] == ' ')
+                pos++;
+        }
+        this.op = BATCH;
+    }
+    
+    /**
+     * Reads a MOVE at pos into the first move slot
+     * @return Board.MOVE_ kind of the move, or -1 if there is no well formed move at pos
+     */
+    private int readMove() {
+        return readMove(0);
+    }
+    
+    /**
+     * Reads a MOVE at pos into move slot i, leaving pos just past it
+     * @param i move slot to fill
+     * @return Board.MOVE_ kind of the move, or -1 if there is no well formed move at pos
+     */
+    private int readMove(int i) {
+        int kind;
+        if (startsWord(line, pos, end, DIG_WORD)) {
+            kind = Board.MOVE_DIG;
+            pos += DIG_WORD.length + 1;
+        } else if (startsWord(line, pos, end, FLAG_WORD)) {
+            kind = Board.MOVE_FLAG;
+            pos += FLAG_WORD.length + 1;
+        } else if (startsWord(line, pos, end, DEFLAG_WORD)) {
+            kind = Board.MOVE_DEFLAG;
+            pos += DEFLAG_WORD.length + 1;
+        } else {
+            return -1;
+        }
+        int x = readNumber();
+        if (x < 0 || pos >= end || line[pos] != ' ')
+            return -1;
+        pos++;
+        int y = readNumber();
+        if (y < 0)
+            return -1;
+        xs[i] = x;
+        ys[i] = y;
+        return kind;
+    }
+    
+    /**
+     * Reads a decimal number at pos, leaving pos just past it
+     * @return the number, capped at Integer.MAX_VALUE, or -1 if there is no digit at pos
+     */
+    private int readNumber() {
+        int first = pos;
+        long value = 0;
+        while (pos < end && line[pos] >= '0' && line[pos] <= '9') {
+            value = Math.min(value*10 + (line[pos] - '0'), Integer.MAX_VALUE);
+            pos++;
+        }
+        if (pos == first)
+            return -1;
+        return (int) value;
+    }
+    
+    /**
+     * @return true if line[start..end) is exactly word
+     */
+    private static boolean equals(byte[] line, int start, int end, byte[] word) {
+        return end - start == word.length && startsWith(line, start, end, word);
+    }
+    
+    /**
+     * @return true if line[start..end) starts with word followed by a space
+     */
+    private static boolean startsWord(byte[] line, int start, int end, byte[] word) {
+        return end - start > word.length && line[start + word.length] == ' ' && startsWith(line, start, end, word);
+    }
+    
+    private static boolean startsWith(byte[] line, int start, int end, byte[] word) {
+        if (end - start < word.length)
+            return false;
+        for (int i=0; i<word.length; i++) {
+            if (line[start+i] != word[i])
+                return false;
+        }
+        return true;
+    }
+    
+    private static byte[] word(String word) {
+        return word.getBytes(StandardCharsets.US_ASCII);
+    }
+}
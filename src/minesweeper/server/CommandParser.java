@@ -0,0 +1,149 @@
+package minesweeper.server;
+
+/*
+ * Buffers the bytes a client sends and cuts them into request lines, parsing each line in place into a Command.
+ * Clients may pipeline: one read can bring any number of lines, and next() hands them out one at a time without
+ * copying them. Like BufferedReader.readLine, a line ends at "\n", "\r" or "\r\n". A line longer than the buffer is
+ * dropped, like any other invalid input.
+ * 
+ * A CommandParser is not threadsafe; the nio engine guards it with its connection's monitor.
+ */
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+public class CommandParser {
+    private final byte[] buffer;
+    /** Same bytes as buffer, for reading from channels. */
+    private final ByteBuffer wrapper;
+    /** buffer[start..end) holds the bytes not handed out yet. */
+    private int start = 0;
+    private int end = 0;
+    /** Bytes in buffer[start..scanned) are known not to end a line. */
+    private int scanned = 0;
+    /** True if the last line ended at a "\r", so a "\n" right after it belongs to that line's end. */
+    private boolean afterReturn = false;
+    /** True while the rest of the current line is being dropped because it is too long. */
+    private boolean skipping = false;
+    
+    /**
+     * @param capacity longest line accepted, and most bytes buffered at once
+     */
+    public CommandParser(int capacity) {
+        this.buffer = new byte[capacity];
+        this.wrapper = ByteBuffer.wrap(buffer);
+    }
+    
+    /**
+     * Reads what the stream has, blocking until at least one byte is there
+     * @param in stream to read from
+     * @return number of bytes read, -1 at end of stream, or 0 if the buffer is full of complete lines that
+     *         have not been handed out yet
+     */
+    public int read(InputStream in) throws IOException {
+        if (!makeRoom())
+            return 0;
+        int n = in.read(buffer, end, buffer.length - end);
+        if (n > 0)
+            end += n;
+        return n;
+    }
+    
+    /**
+     * Reads what the channel has
+     * @param channel to read from
+     * @return number of bytes read, -1 at end of stream, or 0 if nothing could be read, including when the buffer
+     *         is full of complete lines that have not been handed out yet
+     */
+    public int read(ReadableByteChannel channel) throws IOException {
+        if (!makeRoom())
+            return 0;
+        wrapper.limit(buffer.length).position(end);
+        int n = channel.read(wrapper);
+        if (n > 0)
+            end += n;
+        return n;
+    }
+    
+    /**
+     * @return true if there is space to read into
+     */
+    public boolean hasRoom() {
+        return start > 0 || end < buffer.length || !hasLine();
+    }
+    
+    /**
+     * Parses the next complete line into command
+     * @param command to fill in
+     * @return false if no complete line is buffered, in which case command is unchanged
+     */
+    public boolean next(Command command) {
+        while (hasLine()) {
+            int lineEnd = scanned;
+            int lineStart = start;
+            afterReturn = buffer[lineEnd] == '\r';
+            start = scanned = lineEnd + 1;
+            if (skipping) {
+                skipping = false;
+                continue;
+            }
+            command.parse(buffer, lineStart, lineEnd);
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Parses what is left after the end of the stream, which BufferedReader.readLine would also return as a line
+     * @param command to fill in
+     * @return false if nothing is left
+     */
+    public boolean finish(Command command) {
+        if (skipping || start == end)
+            return false;
+        int lineStart = start;
+        start = scanned = end;
+        command.parse(buffer, lineStart, end);
+        return true;
+    }
+    
+    /**
+     * Moves scanned up to the next end of line, first skipping the "\n" of a "\r\n" whose "\r" ended the last line
+     * @return true if buffer[scanned] ends a line
+     */
+    private boolean hasLine() {
+        if (afterReturn && start < end) {
+            afterReturn = false;
+            if (buffer[start] == '\n')
+                start = scanned = start + 1;
+        }
+        while (scanned < end) {
+            if (buffer[scanned] == '\n' || buffer[scanned] == '\r')
+                return true;
+            scanned++;
+        }
+        return false;
+    }
+    
+    /**
+     * Moves the buffered bytes to the front of the buffer. If the buffer is still full and holds no end of line, the
+     * line is too long and is dropped.
+     * @return false if the buffer is full of complete lines
+     */
+    private boolean makeRoom() {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            scanned -= start;
+            start = 0;
+        }
+        if (end < buffer.length)
+            return true;
+        if (hasLine())
+            return false;
+        skipping = true;
+        start = end = scanned = 0;
+        return true;
+    }
+}
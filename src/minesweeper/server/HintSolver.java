@@ -0,0 +1,680 @@
+package minesweeper.server;
+
+/*
+ * Answers hint requests: finds a square that is provably safe to dig, or failing that the square least likely to
+ * hold a bomb, from what players can see of the board. A board gets a solver the first time somebody asks it for a
+ * hint and keeps it, so boards nobody asks pay nothing for it.
+ *
+ * The frontier is the untouched (or flagged) squares next to a dug square. Each dug square showing COUNT says that
+ * exactly COUNT of its untouched or flagged neighbors hold bombs; flags are players' guesses, so they count as
+ * untouched. Frontier squares linked by such constraints form components, which are solved on their own: every
+ * assignment of bombs to a component's squares that meets all its constraints is enumerated, and a square's
+ * probability is the fraction of those assignments with a bomb on it, so a square with probability 0 is provably
+ * safe. Enumerating takes at most BUDGET steps per hint, shared by all the components it solves; a component that
+ * would take more falls back on its constraints one at a time: squares under a constraint of 0 are safe, and
+ * otherwise a square's probability is the highest COUNT/SIZE of its constraints. Squares away from the frontier are
+ * guessed at the density the board was drawn with, never at its real number of bombs, which players cannot see; the
+ * first of them in row-major order is suggested.
+ *
+ * The solver is incremental. Board appends the squares each move changed, and a hint only re-solves the
+ * components within two squares of a change, which are the only ones whose constraints a move can touch; the
+ * others keep their probabilities from earlier hints. Dug squares stay dug and only a deflag makes a square
+ * untouched again, so the squares before the first one away from the frontier stay that way until one of them
+ * changes, and finding it again only looks at the squares after it. The answer is kept for the version it was
+ * solved at, so hints between moves cost nothing.
+ *
+ * Collecting holds the board's write lock, so it is bounded: a hint builds components from at most COLLECT frontier
+ * squares and looks at about COLLECT squares for one away from the frontier, and leaves the rest for the next hint.
+ * The squares still to build from are kept as pending seeds, starting with the neighbors of every square that was
+ * dug before the first hint. A component whose search stopped at the bound is partial: other components leave it
+ * alone and drop the constraints that reach into it, which only loosens them, so a safe square is still safe. Until
+ * nothing is left over the answer is not kept, and the next hint goes on from where this one stopped.
+ *
+ * HINT :== ("hint safe" SPACE X SPACE Y | "hint guess" SPACE X SPACE Y SPACE P | "hint none") NEWLINE
+ *
+ * where P is the probability of a bomb at X,Y, with three decimals, and "none" means no square is left to dig.
+ *
+ * The solver is threadsafe: the changes appended by moves are guarded by its monitor. Board serializes hints with
+ * its hint lock, and a hint is solved in two steps: collect reads what it needs from the board with the write lock
+ * held, and solve enumerates and picks the hint from that snapshot without it, so moves go on meanwhile.
+ */
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+class HintSolver {
+    /** Most assignment steps spent enumerating per hint before falling back on constraints one at a time. */
+    private static final int BUDGET = Integer.getInteger("minesweeper.hintBudget", 1 << 20);
+    /** Most frontier squares a hint builds components from, and about the most squares it looks at for one away
+     *  from the frontier, with the write lock held. */
+    private static final int COLLECT = Integer.getInteger("minesweeper.hintCollect", 1 << 16);
+
+    /**
+     * Frontier squares linked by constraints, with the probability of a bomb on each
+     */
+    private static final class Component {
+        final long[] squares;
+        /** Set once solved. */
+        double[] probabilities;
+        /** Index of the square to suggest, the least likely to hold a bomb that is not flagged, or -1. */
+        int best = -1;
+        /** Its search stopped at COLLECT squares, so it may miss constraints, see the class comment. */
+        final boolean partial;
+
+        Component(long[] squares, boolean partial) {
+            this.squares = squares;
+            this.partial = partial;
+        }
+    }
+
+    /**
+     * A component's constraints, as read from the board
+     */
+    private static final class Problem {
+        final Component component;
+        /** Bombs each constraint asks for. */
+        final int[] counts;
+        /** Squares under each constraint, as indexes into component.squares. */
+        final int[][] members;
+        final boolean[] flagged;
+
+        Problem(Component component, int[] counts, int[][] members, boolean[] flagged) {
+            this.component = component;
+            this.counts = counts;
+            this.members = members;
+            this.flagged = flagged;
+        }
+    }
+
+    /**
+     * What a hint needs from the board, read by collect with the write lock held
+     */
+    static final class Snapshot {
+        final long version;
+        final List<Problem> problems = new ArrayList<Problem>();
+        /** First square away from the frontier, or -1 if there is none. */
+        long interior = -1;
+        /** An untouched square to guess if collect stopped before finding anything better, or -1. */
+        long fallback = -1;
+        /** Nothing was left for the next hint, so the answer can be kept. */
+        boolean complete = true;
+
+        Snapshot(long version) {
+            this.version = version;
+        }
+    }
+
+    /**
+     * A hint and the version it was solved at
+     */
+    private static final class Answer {
+        final long version;
+        final String text;
+
+        Answer(long version, String text) {
+            this.version = version;
+            this.text = text;
+        }
+    }
+
+    private final Board board;
+    private final int length;
+    /** Chance of a bomb on a square away from the frontier. */
+    private final double density;
+    // Guarded by this
+    /** Squares changed since the last solve, as x*length+y. */
+    private long[] changed = new long[64];
+    private int count = 0;
+    // Only used with the board's hint lock held
+    private final Map<Long, Component> owners = new HashMap<Long, Component>();
+    private final Set<Component> components = new HashSet<Component>();
+    /** Squares to build components from, left over from earlier hints. */
+    private final Set<Long> pending = new LinkedHashSet<Long>();
+    /** Squares dug before the solver was made; the neighbors of those from source on are not pending yet. */
+    private final long[] sources;
+    private int source = 0;
+    /** Every square before this one in row-major order has been dug or is next to a dug square. */
+    private long interior = 0;
+    /** Enumeration steps left for the hint being solved. */
+    private long steps;
+    private volatile Answer answer;
+
+    /**
+     * Makes a solver that starts from every dug square of board. Only called by Board, with the write lock held.
+     * @param board to solve
+     * @param dug every dug square of board, as x*length+y
+     * @param density chance of a bomb on a square away from the frontier
+     */
+    HintSolver(Board board, long[] dug, double density) {
+        this.board = board;
+        this.length = board.getLength();
+        this.density = density;
+        this.sources = dug;
+    }
+
+    /**
+     * Appends the squares a move changed. Called by Board with the move's locks held.
+     * @param squares the changed squares, as x*length+y
+     * @param from index of the move's first change
+     * @param to index after the move's last change
+     */
+    synchronized void append(long[] squares, int from, int to) {
+        int n = to - from;
+        if (count + n > changed.length)
+            changed = Arrays.copyOf(changed, Math.max(2*changed.length, count + n));
+        System.arraycopy(squares, from, changed, count, n);
+        count += n;
+    }
+
+    /**
+     * @param version current version of the board
+     * @return the hint solved at version, or null if the last hint was solved at another version
+     */
+    String cached(long version) {
+        Answer a = this.answer;
+        return a != null && a.version == version ? a.text : null;
+    }
+
+    /**
+     * Reads the components near the squares changed since the last hint, and the first square away from the
+     * frontier, from the board, as far as COLLECT allows. Only called by Board with the write lock and the hint lock
+     * held.
+     * @param version current version of the board
+     * @return what solve needs
+     */
+    Snapshot collect(long version) {
+        long[] squares;
+        int n;
+        synchronized (this) {
+            squares = changed;
+            n = count;
+            changed = new long[64];
+            count = 0;
+        }
+        // Every changed square is handled, since a component it touches would be wrong otherwise
+        for (int i=0; i<n; i++) {
+            int x = (int) (squares[i] / length);
+            int y = (int) (squares[i] % length);
+            for (int u=Math.max(x-2, 0); u<=Math.min(x+2, length-1); u++) {
+                for (int v=Math.max(y-2, 0); v<=Math.min(y+2, length-1); v++) {
+                    long key = (long) u*length + v;
+                    drop(owners.get(key));
+                    if (Math.abs(u-x) <= 1 && Math.abs(v-y) <= 1)
+                        pending.add(key);
+                }
+            }
+        }
+        Snapshot snapshot = new Snapshot(version);
+        int left = COLLECT;
+        while (left > 0) {
+            if (pending.isEmpty()) {
+                if (source == sources.length)
+                    break;
+                int x = (int) (sources[source] / length);
+                int y = (int) (sources[source++] % length);
+                for (int u=Math.max(x-1, 0); u<=Math.min(x+1, length-1); u++) {
+                    for (int v=Math.max(y-1, 0); v<=Math.min(y+1, length-1); v++) {
+                        pending.add((long) u*length + v);
+                    }
+                }
+                continue;
+            }
+            Iterator<Long> next = pending.iterator();
+            long seed = next.next();
+            next.remove();
+            left--;
+            if (!owners.containsKey(seed) && isFrontier(seed)) {
+                Problem problem = build(seed, left);
+                left -= problem.component.squares.length;
+                snapshot.problems.add(problem);
+            }
+        }
+        snapshot.complete = pending.isEmpty() && source == sources.length;
+        findInterior(squares, n, snapshot);
+        // Rather than answer none with work left over, suggest a pending square; this reads one square per
+        // pending seed at most, and only when the frontier scanned so far had no square to suggest
+        if (!snapshot.complete && snapshot.fallback < 0) {
+            for (long square : pending) {
+                if (board.visible((int) (square / length), (int) (square % length)) == '-') {
+                    snapshot.fallback = square;
+                    break;
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Solves the components a snapshot read and picks the hint. Only called by Board with the hint lock held, after
+     * collect and without the write lock.
+     * @param snapshot what collect read
+     * @return the hint, which is also kept for the snapshot's version
+     */
+    String solve(Snapshot snapshot) {
+        steps = BUDGET;
+        for (Problem problem : snapshot.problems) {
+            long[] keys = problem.component.squares;
+            double[] probabilities = solve(keys.length, problem.counts, problem.members);
+            int best = -1;
+            for (int i=0; i<keys.length; i++) {
+                if (!problem.flagged[i] && (best < 0 || probabilities[i] < probabilities[best]
+                        || (probabilities[i] == probabilities[best] && keys[i] < keys[best])))
+                    best = i;
+            }
+            problem.component.probabilities = probabilities;
+            problem.component.best = best;
+        }
+        String text = pick(snapshot.interior, snapshot.fallback);
+        if (snapshot.complete)
+            this.answer = new Answer(snapshot.version, text);
+        return text;
+    }
+
+    /**
+     * Forgets a component, keeping its squares as seeds to build components from again
+     */
+    private void drop(Component component) {
+        if (component == null || !components.remove(component))
+            return;
+        for (long square : component.squares) {
+            owners.remove(square);
+            pending.add(square);
+        }
+    }
+
+    /**
+     * Collects the component of a frontier square, absorbing any whole component it now touches, and makes it own
+     * its squares. The search stops after limit squares, see the class comment.
+     * @param seed a frontier square no component owns
+     * @param limit most squares to search from
+     * @return the component's constraints, to be solved by solve
+     */
+    private Problem build(long seed, int limit) {
+        List<Long> squares = new ArrayList<Long>();
+        Map<Long, Integer> index = new HashMap<Long, Integer>();
+        List<Long> constraints = new ArrayList<Long>();
+        Set<Long> seen = new HashSet<Long>();
+        ArrayDeque<Long> queue = new ArrayDeque<Long>();
+        index.put(seed, 0);
+        squares.add(seed);
+        queue.add(seed);
+        int searched = 0;
+        while (!queue.isEmpty() && searched++ < Math.max(limit, 1)) {
+            long square = queue.poll();
+            int x = (int) (square / length);
+            int y = (int) (square % length);
+            for (int u=Math.max(x-1, 0); u<=Math.min(x+1, length-1); u++) {
+                for (int v=Math.max(y-1, 0); v<=Math.min(y+1, length-1); v++) {
+                    long dug = (long) u*length + v;
+                    if (!isDug(board.visible(u, v)) || !seen.add(dug) || reachesPartial(u, v))
+                        continue;
+                    constraints.add(dug);
+                    for (int s=Math.max(u-1, 0); s<=Math.min(u+1, length-1); s++) {
+                        for (int t=Math.max(v-1, 0); t<=Math.min(v+1, length-1); t++) {
+                            long next = (long) s*length + t;
+                            if (!isDug(board.visible(s, t)) && !index.containsKey(next)) {
+                                drop(owners.get(next));
+                                index.put(next, squares.size());
+                                squares.add(next);
+                                queue.add(next);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        int size = squares.size();
+        int[] counts = new int[constraints.size()];
+        int[][] members = new int[constraints.size()][];
+        for (int c=0; c<counts.length; c++) {
+            int u = (int) (constraints.get(c) / length);
+            int v = (int) (constraints.get(c) % length);
+            char symbol = board.visible(u, v);
+            counts[c] = symbol == ' ' ? 0 : symbol - '0';
+            int[] vars = new int[8];
+            int k = 0;
+            for (int s=Math.max(u-1, 0); s<=Math.min(u+1, length-1); s++) {
+                for (int t=Math.max(v-1, 0); t<=Math.min(v+1, length-1); t++) {
+                    Integer var = index.get((long) s*length + t);
+                    if (var != null)
+                        vars[k++] = var;
+                }
+            }
+            members[c] = Arrays.copyOf(vars, k);
+        }
+        long[] keys = new long[size];
+        boolean[] flagged = new boolean[size];
+        for (int i=0; i<size; i++) {
+            keys[i] = squares.get(i);
+            flagged[i] = board.visible((int) (keys[i] / length), (int) (keys[i] % length)) == 'F';
+        }
+        Component component = new Component(keys, !queue.isEmpty());
+        components.add(component);
+        for (long key : keys) {
+            owners.put(key, component);
+        }
+        return new Problem(component, counts, members, flagged);
+    }
+
+    /**
+     * @return true if a neighbor of the dug square (u,v) belongs to a partial component
+     */
+    private boolean reachesPartial(int u, int v) {
+        for (int s=Math.max(u-1, 0); s<=Math.min(u+1, length-1); s++) {
+            for (int t=Math.max(v-1, 0); t<=Math.min(v+1, length-1); t++) {
+                Component owner = owners.get((long) s*length + t);
+                if (owner != null && owner.partial)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Settles the squares single constraints decide, then enumerates the rest a group of linked squares at a time
+     * @param size number of squares
+     * @param counts bombs each constraint asks for
+     * @param members squares under each constraint
+     * @return probability of a bomb on each square
+     */
+    private double[] solve(int size, int[] counts, int[][] members) {
+        // 0 or 1 for squares known to be safe or to hold a bomb, -1 for the others
+        int[] known = new int[size];
+        Arrays.fill(known, -1);
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (int c=0; c<counts.length; c++) {
+                int bombs = 0;
+                int open = 0;
+                for (int var : members[c]) {
+                    if (known[var] < 0)
+                        open++;
+                    else
+                        bombs += known[var];
+                }
+                if (open == 0 || (bombs < counts[c] && bombs + open > counts[c]))
+                    continue;
+                int value = bombs >= counts[c] ? 0 : 1;
+                for (int var : members[c]) {
+                    if (known[var] < 0)
+                        known[var] = value;
+                }
+                progress = true;
+            }
+        }
+        // Groups of open squares linked by a constraint
+        int[] group = new int[size];
+        for (int i=0; i<size; i++) {
+            group[i] = i;
+        }
+        for (int[] vars : members) {
+            int first = -1;
+            for (int var : vars) {
+                if (known[var] >= 0)
+                    continue;
+                if (first < 0)
+                    first = var;
+                else
+                    group[root(group, var)] = root(group, first);
+            }
+        }
+        double[] probabilities = new double[size];
+        int[] local = new int[size];
+        boolean[] done = new boolean[size];
+        for (int i=0; i<size; i++) {
+            if (known[i] >= 0) {
+                probabilities[i] = known[i];
+                continue;
+            }
+            int r = root(group, i);
+            if (done[r])
+                continue;
+            done[r] = true;
+            int n = 0;
+            for (int j=i; j<size; j++) {
+                if (known[j] < 0 && root(group, j) == r)
+                    local[j] = n++;
+            }
+            int[] groupVars = new int[n];
+            for (int j=i; j<size; j++) {
+                if (known[j] < 0 && root(group, j) == r)
+                    groupVars[local[j]] = j;
+            }
+            // The constraints on the group, less the bombs already known
+            List<Integer> groupCounts = new ArrayList<Integer>();
+            List<int[]> groupMembers = new ArrayList<int[]>();
+            for (int c=0; c<counts.length; c++) {
+                int bombs = 0;
+                int k = 0;
+                int[] vars = new int[members[c].length];
+                for (int var : members[c]) {
+                    if (known[var] >= 0)
+                        bombs += known[var];
+                    else if (root(group, var) == r)
+                        vars[k++] = local[var];
+                }
+                if (k > 0) {
+                    groupCounts.add(counts[c] - bombs);
+                    groupMembers.add(Arrays.copyOf(vars, k));
+                }
+            }
+            int[] reducedCounts = new int[groupCounts.size()];
+            for (int c=0; c<reducedCounts.length; c++) {
+                reducedCounts[c] = groupCounts.get(c);
+            }
+            int[][] reducedMembers = groupMembers.toArray(new int[groupMembers.size()][]);
+            double[] groupProbabilities = enumerate(n, reducedCounts, reducedMembers);
+            if (groupProbabilities == null)
+                groupProbabilities = estimate(n, reducedCounts, reducedMembers);
+            for (int j=0; j<n; j++) {
+                probabilities[groupVars[j]] = groupProbabilities[j];
+            }
+        }
+        return probabilities;
+    }
+
+    private static int root(int[] group, int i) {
+        while (group[i] != i) {
+            group[i] = group[group[i]];
+            i = group[i];
+        }
+        return i;
+    }
+
+    /**
+     * Enumerates every assignment of bombs to a component's squares that meets its constraints
+     * @param size number of squares
+     * @param counts bombs each constraint asks for
+     * @param members squares under each constraint
+     * @return probability of a bomb on each square, or null if it takes more steps than the hint has left or nothing
+     *         fits
+     */
+    private double[] enumerate(int size, int[] counts, int[][] members) {
+        // Constraints each square is under
+        int[] under = new int[size];
+        for (int[] vars : members) {
+            for (int var : vars) {
+                under[var]++;
+            }
+        }
+        int[][] of = new int[size][];
+        for (int i=0; i<size; i++) {
+            of[i] = new int[under[i]];
+            under[i] = 0;
+        }
+        for (int c=0; c<members.length; c++) {
+            for (int var : members[c]) {
+                of[var][under[var]++] = c;
+            }
+        }
+        int[] bombs = new int[counts.length];
+        int[] open = new int[counts.length];
+        for (int c=0; c<counts.length; c++) {
+            open[c] = members[c].length;
+        }
+        int[] value = new int[size];
+        Arrays.fill(value, -1);
+        long[] hits = new long[size];
+        long solutions = 0;
+        int i = 0;
+        while (i >= 0) {
+            if (i == size) {
+                solutions++;
+                for (int j=0; j<size; j++) {
+                    hits[j] += value[j];
+                }
+                i--;
+                continue;
+            }
+            if (value[i] >= 0) {
+                for (int c : of[i]) {
+                    open[c]++;
+                    bombs[c] -= value[i];
+                }
+            }
+            if (++value[i] > 1) {
+                value[i] = -1;
+                i--;
+                continue;
+            }
+            if (--steps < 0)
+                return null;
+            boolean fits = true;
+            for (int c : of[i]) {
+                open[c]--;
+                bombs[c] += value[i];
+                fits &= bombs[c] <= counts[c] && bombs[c] + open[c] >= counts[c];
+            }
+            if (fits)
+                i++;
+        }
+        if (solutions == 0)
+            return null;
+        double[] probabilities = new double[size];
+        for (int j=0; j<size; j++) {
+            probabilities[j] = (double) hits[j] / solutions;
+        }
+        return probabilities;
+    }
+
+    /**
+     * Falls back on the constraints one at a time, see the class comment
+     */
+    private static double[] estimate(int size, int[] counts, int[][] members) {
+        double[] probabilities = new double[size];
+        boolean[] safe = new boolean[size];
+        for (int c=0; c<counts.length; c++) {
+            for (int var : members[c]) {
+                if (counts[c] == 0)
+                    safe[var] = true;
+                probabilities[var] = Math.max(probabilities[var], Math.min(1, (double) counts[c] / members[c].length));
+            }
+        }
+        for (int i=0; i<size; i++) {
+            if (safe[i])
+                probabilities[i] = 0;
+        }
+        return probabilities;
+    }
+
+    /**
+     * @param away first square away from the frontier, or -1
+     * @param fallback untouched square to guess if nothing else was found, or -1
+     * @return the hint: the least likely square to hold a bomb on the frontier, unless a square away from it is
+     *         less likely
+     */
+    private String pick(long away, long fallback) {
+        long square = -1;
+        double probability = 2;
+        for (Component component : components) {
+            if (component.best < 0)
+                continue;
+            long key = component.squares[component.best];
+            double p = component.probabilities[component.best];
+            if (p < probability || (p == probability && key < square)) {
+                square = key;
+                probability = p;
+            }
+        }
+        if ((square < 0 || density < probability) && away >= 0) {
+            square = away;
+            probability = density;
+        }
+        if (square < 0 && fallback >= 0) {
+            square = fallback;
+            probability = density;
+        }
+        if (square < 0)
+            return "hint none\n";
+        long x = square / length;
+        long y = square % length;
+        if (probability == 0)
+            return "hint safe " + x + " " + y + "\n";
+        return String.format(Locale.ROOT, "hint guess %d %d %.3f\n", x, y, probability);
+    }
+
+    /**
+     * Looks for the first untouched square in row-major order with no dug neighbor and sets snapshot.interior to it,
+     * or to -1 if there is none. It gives up after passing COLLECT untouched squares, so besides those it only reads
+     * dug and flagged squares, and the first untouched square it passed becomes snapshot.fallback.
+     * @param changed squares changed since the last hint
+     * @param n number of them
+     * @param snapshot to fill in
+     */
+    private void findInterior(long[] changed, int n, Snapshot snapshot) {
+        // Only a changed square can have become untouched again, see the class comment
+        for (int i=0; i<n; i++) {
+            interior = Math.min(interior, changed[i]);
+        }
+        long squares = (long) length*length;
+        for (int left=COLLECT; interior < squares && !isInterior(interior); interior++) {
+            if (board.visible((int) (interior / length), (int) (interior % length)) != '-')
+                continue;
+            if (snapshot.fallback < 0)
+                snapshot.fallback = interior;
+            if (--left < 0) {
+                snapshot.complete = false;
+                return;
+            }
+        }
+        snapshot.interior = interior < squares ? interior : -1;
+    }
+
+    private boolean isInterior(long square) {
+        int x = (int) (square / length);
+        int y = (int) (square % length);
+        return board.visible(x, y) == '-' && !hasDugNeighbor(x, y);
+    }
+
+    /**
+     * @return true if square is untouched or flagged and next to a dug square
+     */
+    private boolean isFrontier(long square) {
+        int x = (int) (square / length);
+        int y = (int) (square % length);
+        return !isDug(board.visible(x, y)) && hasDugNeighbor(x, y);
+    }
+
+    private boolean hasDugNeighbor(int x, int y) {
+        for (int u=Math.max(x-1, 0); u<=Math.min(x+1, length-1); u++) {
+            for (int v=Math.max(y-1, 0); v<=Math.min(y+1, length-1); v++) {
+                if (isDug(board.visible(u, v)))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDug(char symbol) {
+        return symbol != '-' && symbol != 'F';
+    }
+}
@@ -0,0 +1,128 @@
+package minesweeper.server;
+
+/*
+ * A histogram of durations in nanoseconds with about 3% precision, cheap enough to record into on every request.
+ * Values are bucketed by their highest set bit and the 5 bits below it, so each power of two is split into 32
+ * buckets; a fixed array of 1888 counters covers every positive long. Recording is one array increment plus a few
+ * atomic updates and never allocates.
+ * 
+ * The histogram is threadsafe because every counter is atomic. A percentile read while other threads record may
+ * mix counts from slightly different moments, which is fine for monitoring.
+ */
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    
+    /**
+     * Records one duration
+     * @param nanos duration in nanoseconds; negative values count as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+    
+    /**
+     * Adds every duration recorded in other to this histogram
+     * @param other histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i=0; i<BUCKETS; i++) {
+            long n = other.counts.get(i);
+            if (n != 0)
+                counts.addAndGet(i, n);
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        long otherMax = other.max.get();
+        long current = max.get();
+        while (otherMax > current && !max.compareAndSet(current, otherMax)) {
+            current = max.get();
+        }
+    }
+    
+    /**
+     * @return number of durations recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+    
+    /**
+     * @return mean duration in nanoseconds, or 0 if nothing was recorded
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+    
+    /**
+     * @return longest duration recorded, in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+    
+    /**
+     * @param fraction between 0 and 1, e.g. 0.99 for the 99th percentile
+     * @return duration in nanoseconds that fraction of the recorded durations do not exceed, to within the
+     *         histogram's precision, or 0 if nothing was recorded
+     */
+    public long getPercentile(double fraction) {
+        long total = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(rank, 1))
+                return Math.min(highest(i), max.get());
+        }
+        return max.get();
+    }
+    
+    /**
+     * @param value non-negative duration
+     * @return index of the bucket holding value
+     */
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+    
+    /**
+     * @param bucket index of a bucket
+     * @return largest value that falls in the bucket
+     */
+    private static long highest(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long lowest = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+        return lowest + (1L << (exponent - SUB_BITS)) - 1;
+    }
+}
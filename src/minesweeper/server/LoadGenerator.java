@@ -0,0 +1,323 @@
+package minesweeper.server;
+
+/*
+ * Load generator that drives a MinesweeperServer with many simulated players over loopback.
+ *
+ * Usage: LoadGenerator [-n PLAYERS] [-t SECONDS] [-w SECONDS] [-mix LOOK:DIG:FLAG:DEFLAG] [-s SIZE]
+ *                      [-h HOST] [-p PORT] [-delta] [-seed SEED]
+ *
+ * Unless -h is given, a debug server with a random SIZE*SIZE board (100 by default) is started in this process with
+ * runMinesweeperServer, listening on PORT (4444 by default). Its board is seeded with SEED (42 by default) through
+ * minesweeper.seed. Otherwise the players connect to the server already
+ * running at HOST:PORT.
+ *
+ * Each of the PLAYERS players (16 by default) opens its own connection and sends one request at a time, waiting for
+ * the whole response before sending the next. Requests are look, dig, flag and deflag on random squares, picked in
+ * the ratio given by -mix (70:10:10:10 by default). With -delta the players switch on delta responses first.
+ * Requests in the first -w seconds (2 by default) warm the server up and are not counted; requests in the following
+ * -t seconds (10 by default) are. The report gives throughput and p50/p99/p999/max latency per command, measured
+ * from writing the request to reading the last line of its response, and the number of connection errors.
+ *
+ * Every player seeds its own random numbers from SEED, so runs with the same arguments send the same requests, to the
+ * same board when the server is started here.
+ */
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LoadGenerator {
+    private static final String[] COMMANDS = {"look", "dig", "flag", "deflag"};
+
+    private final String host;
+    private final int port;
+    private final int[] mix;
+    private final boolean delta;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[COMMANDS.length];
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong booms = new AtomicLong();
+    /** Set once the warmup is over; requests are only counted while this is true. */
+    private volatile boolean measuring;
+    /** Cleared when the run is over. */
+    private volatile boolean running = true;
+
+    /**
+     * @param host server to connect to
+     * @param port port the server listens on
+     * @param mix relative weights of look, dig, flag and deflag requests
+     * @param delta whether players switch on delta responses
+     */
+    public LoadGenerator(String host, int port, int[] mix, boolean delta) {
+        this.host = host;
+        this.port = port;
+        this.mix = mix.clone();
+        this.delta = delta;
+        for (int i=0; i<latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * One simulated player with its own connection
+     */
+    private class Player implements Runnable {
+        private final Random random;
+        private Socket socket;
+        private BufferedReader in;
+        private OutputStream out;
+        /** Width of the board, learned from the first board message. */
+        private int size;
+
+        Player(long seed) {
+            random = new Random(seed);
+        }
+
+        public void run() {
+            int total = 0;
+            for (int weight : mix) {
+                total += weight;
+            }
+            boolean boomed = false;
+            while (running) {
+                try {
+                    if (socket == null) {
+                        connect();
+                        boomed = false;
+                    }
+                    int pick = random.nextInt(total);
+                    int command = 0;
+                    while (pick >= mix[command]) {
+                        pick -= mix[command];
+                        command++;
+                    }
+                    String request = COMMANDS[command];
+                    if (command != 0)
+                        request += " " + random.nextInt(size) + " " + random.nextInt(size);
+                    long start = System.nanoTime();
+                    String first = send(request);
+                    long elapsed = System.nanoTime() - start;
+                    if (first == null) {
+                        // A server that is not in debug mode hangs up after BOOM, which is not an error
+                        if (!boomed)
+                            error();
+                        disconnect();
+                        continue;
+                    }
+                    boomed = first.equals("BOOM!");
+                    if (measuring) {
+                        latencies[command].record(elapsed);
+                        if (boomed)
+                            booms.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    if (!boomed)
+                        error();
+                    disconnect();
+                }
+            }
+            disconnect();
+        }
+
+        /**
+         * Opens the connection, reads the welcome message and learns the board size from a look
+         */
+        private void connect() throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            out = socket.getOutputStream();
+            if (in.readLine() == null)
+                throw new IOException("server closed the connection");
+            out.write("look\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            String row = in.readLine();
+            if (row == null)
+                throw new IOException("server closed the connection");
+            size = (row.length() + 1) / 2;
+            for (int i=1; i<size; i++) {
+                in.readLine();
+            }
+            if (delta && send("delta on") == null)
+                throw new IOException("server closed the connection");
+        }
+
+        /**
+         * Sends one request and reads its whole response
+         * @param request request without the trailing newline
+         * @return first line of the response, or null if the server closed the connection
+         */
+        private String send(String request) throws IOException {
+            out.write((request + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            String first = in.readLine();
+            if (first == null || first.equals("BOOM!"))
+                return first;
+            int remaining;
+            if (first.startsWith("delta ")) {
+                remaining = Integer.parseInt(first.substring(first.lastIndexOf(' ') + 1));
+            } else if (first.startsWith("version ")) {
+                remaining = size;
+            } else {
+                remaining = size - 1;
+            }
+            for (int i=0; i<remaining; i++) {
+                if (in.readLine() == null)
+                    return null;
+            }
+            return first;
+        }
+
+        private void disconnect() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // already closed
+                }
+            }
+            socket = null;
+        }
+
+        private void error() {
+            if (measuring)
+                errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Runs the players and prints the report
+     * @param players number of simulated players
+     * @param seed seed for the players' random numbers
+     * @param warmupMillis how long to run before counting requests
+     * @param millis how long to count requests for
+     */
+    public void run(int players, long seed, long warmupMillis, long millis) throws InterruptedException {
+        Thread[] threads = new Thread[players];
+        for (int i=0; i<players; i++) {
+            threads[i] = new Thread(new Player(seed + i), "player-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        Thread.sleep(warmupMillis);
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(millis);
+        measuring = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        running = false;
+        for (Thread thread : threads) {
+            thread.join(1000);
+        }
+
+        System.out.printf("%-8s %10s %12s %10s %10s %10s %10s%n",
+                "Command", "Count", "ops/s", "p50 (us)", "p99 (us)", "p999 (us)", "max (us)");
+        LatencyHistogram all = new LatencyHistogram();
+        for (int i=0; i<COMMANDS.length; i++) {
+            print(COMMANDS[i], latencies[i], seconds);
+            all.add(latencies[i]);
+        }
+        print("all", all, seconds);
+        System.out.println("BOOM responses: " + booms.get());
+        System.out.println("connection errors: " + errors.get());
+    }
+
+    private static void print(String name, LatencyHistogram histogram, double seconds) {
+        System.out.printf("%-8s %10d %12.1f %10.1f %10.1f %10.1f %10.1f%n", name, histogram.getCount(),
+                histogram.getCount() / seconds, histogram.getPercentile(0.5) / 1e3,
+                histogram.getPercentile(0.99) / 1e3, histogram.getPercentile(0.999) / 1e3,
+                histogram.getMax() / 1e3);
+    }
+
+    /**
+     * Starts a debug server in this process and waits until it accepts connections
+     * @param size width of the server's random board
+     * @param port port for the server to listen on
+     * @param seed seed of the server's random board
+     */
+    private static void startServer(final int size, final int port, long seed) throws InterruptedException {
+        System.setProperty("minesweeper.seed", Long.toString(seed));
+        Thread server = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    MinesweeperServer.runMinesweeperServer(true, null, size, port);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "server");
+        server.setDaemon(true);
+        server.start();
+        for (int attempt=0; ; attempt++) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                if (attempt == 100)
+                    throw new RuntimeException("Server did not start on port " + port);
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int players = 16;
+        long millis = 10000;
+        long warmupMillis = 2000;
+        int[] mix = {70, 10, 10, 10};
+        int size = 100;
+        String host = null;
+        int port = 4444;
+        boolean delta = false;
+        long seed = 42;
+        try {
+            for (int i=0; i<args.length; i++) {
+                if (args[i].equals("-n"))
+                    players = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-t"))
+                    millis = (long) (Double.parseDouble(args[++i]) * 1000);
+                else if (args[i].equals("-w"))
+                    warmupMillis = (long) (Double.parseDouble(args[++i]) * 1000);
+                else if (args[i].equals("-mix")) {
+                    String[] weights = args[++i].split(":");
+                    if (weights.length != COMMANDS.length)
+                        throw new IllegalArgumentException();
+                    int total = 0;
+                    for (int j=0; j<weights.length; j++) {
+                        mix[j] = Integer.parseInt(weights[j]);
+                        if (mix[j] < 0)
+                            throw new IllegalArgumentException();
+                        total += mix[j];
+                    }
+                    if (total == 0)
+                        throw new IllegalArgumentException();
+                } else if (args[i].equals("-s"))
+                    size = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-h"))
+                    host = args[++i];
+                else if (args[i].equals("-p"))
+                    port = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-delta"))
+                    delta = true;
+                else if (args[i].equals("-seed"))
+                    seed = Long.parseLong(args[++i]);
+                else
+                    throw new IllegalArgumentException();
+            }
+            if (players < 1 || size < 1)
+                throw new IllegalArgumentException();
+        } catch (RuntimeException e) {
+            System.err.println("usage: LoadGenerator [-n PLAYERS] [-t SECONDS] [-w SECONDS] [-mix LOOK:DIG:FLAG:DEFLAG]"
+                    + " [-s SIZE] [-h HOST] [-p PORT] [-delta] [-seed SEED]");
+            return;
+        }
+        if (host == null) {
+            startServer(size, port, seed);
+            host = "localhost";
+        }
+        new LoadGenerator(host, port, mix, delta).run(players, seed, warmupMillis, millis);
+    }
+}
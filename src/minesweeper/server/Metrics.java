@@ -0,0 +1,222 @@
+package minesweeper.server;
+
+/*
+ * Counters and histograms describing what the server is doing: latency of each kind of request, time spent waiting
+ * for board locks, squares changed by each dig, bytes of responses and open connections. There is one Metrics per
+ * process, shared by every room and connection, available from get(). It is published over JMX by register() and
+ * to clients by the stats request.
+ * 
+ * Recording only updates atomic counters (see LatencyHistogram), so it never allocates or blocks and can stay on
+ * in production. Lock waits are only timed when the lock is not free at the first try, so an uncontended board
+ * pays nothing for them.
+ */
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class Metrics implements MetricsMBean {
+    /** Request names, indexed by the Command request constants. */
+    private static final String[] COMMANDS =
+        {"invalid", "look", "dig", "flag", "deflag", "help", "bye", "other", "batch", "stats", "view", "subscribe",
+         "unsubscribe", "hint"};
+    private static final Metrics INSTANCE = new Metrics();
+    
+    private final LatencyHistogram[] commands = new LatencyHistogram[COMMANDS.length];
+    private final LatencyHistogram lockWaits = new LatencyHistogram();
+    /** Squares each dig changed, recorded as if they were nanoseconds. */
+    private final LatencyHistogram revealed = new LatencyHistogram();
+    private final LongAdder responseBytes = new LongAdder();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder slowClients = new LongAdder();
+    
+    private Metrics() {
+        for (int i=0; i<commands.length; i++) {
+            commands[i] = new LatencyHistogram();
+        }
+    }
+    
+    /**
+     * @return the metrics of this process
+     */
+    public static Metrics get() {
+        return INSTANCE;
+    }
+    
+    /**
+     * Publishes the metrics on the platform MBean server, unless a server in this process already did
+     */
+    static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("minesweeper.server:type=Metrics");
+            synchronized (INSTANCE) {
+                if (!server.isRegistered(name))
+                    server.registerMBean(INSTANCE, name);
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * @param op Command request constant
+     * @param nanos time taken to handle the request
+     */
+    void recordCommand(int op, long nanos) {
+        commands[op].record(nanos);
+    }
+    
+    /**
+     * @param nanos time a thread waited for a board lock that was held
+     */
+    void recordLockWait(long nanos) {
+        lockWaits.record(nanos);
+    }
+    
+    /**
+     * @param squares number of squares whose symbol a dig changed
+     */
+    void recordDig(int squares) {
+        revealed.record(squares);
+    }
+    
+    /**
+     * @param bytes size of a response queued for a client
+     */
+    void recordResponse(int bytes) {
+        responseBytes.add(bytes);
+    }
+    
+    void connectionOpened() {
+        connections.incrementAndGet();
+    }
+    
+    void connectionClosed() {
+        connections.decrementAndGet();
+    }
+    
+    /**
+     * Counts a connection dropped because it stayed over its Outbox's limit
+     */
+    void slowClientDropped() {
+        slowClients.increment();
+    }
+    
+    @Override
+    public int getActiveConnections() {
+        return connections.get();
+    }
+    
+    @Override
+    public long getResponseBytes() {
+        return responseBytes.sum();
+    }
+    
+    @Override
+    public long getSlowClientsDropped() {
+        return slowClients.sum();
+    }
+    
+    @Override
+    public String[] getCommands() {
+        return COMMANDS.clone();
+    }
+    
+    @Override
+    public long[] getCommandCounts() {
+        long[] counts = new long[commands.length];
+        for (int i=0; i<commands.length; i++) {
+            counts[i] = commands[i].getCount();
+        }
+        return counts;
+    }
+    
+    @Override
+    public double[] getCommandP50Micros() {
+        return percentiles(0.5);
+    }
+    
+    @Override
+    public double[] getCommandP99Micros() {
+        return percentiles(0.99);
+    }
+    
+    @Override
+    public double[] getCommandP999Micros() {
+        return percentiles(0.999);
+    }
+    
+    private double[] percentiles(double fraction) {
+        double[] micros = new double[commands.length];
+        for (int i=0; i<commands.length; i++) {
+            micros[i] = commands[i].getPercentile(fraction) / 1e3;
+        }
+        return micros;
+    }
+    
+    @Override
+    public long getLockWaits() {
+        return lockWaits.getCount();
+    }
+    
+    @Override
+    public double getLockWaitP99Micros() {
+        return lockWaits.getPercentile(0.99) / 1e3;
+    }
+    
+    @Override
+    public double getLockWaitMaxMicros() {
+        return lockWaits.getMax() / 1e3;
+    }
+    
+    @Override
+    public long getDigs() {
+        return revealed.getCount();
+    }
+    
+    @Override
+    public double getMeanSquaresRevealed() {
+        return revealed.getMean();
+    }
+    
+    @Override
+    public long getMaxSquaresRevealed() {
+        return revealed.getMax();
+    }
+    
+    /**
+     * Lists the metrics, one per line:
+     * 
+     * "connections N", "responseBytes N" and "slowClientsDropped N", then for each kind of request that has been made
+     * "command NAME count N p50 US p99 US p999 US max US", then "lockWait count N p50 US p99 US p999 US max US"
+     * and "dig count N mean SQUARES p99 SQUARES max SQUARES". US are latencies in microseconds.
+     * 
+     * @return the report
+     */
+    @Override
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append("connections ").append(connections.get()).append('\n');
+        report.append("responseBytes ").append(responseBytes.sum()).append('\n');
+        report.append("slowClientsDropped ").append(slowClients.sum()).append('\n');
+        for (int i=0; i<commands.length; i++) {
+            if (commands[i].getCount() != 0)
+                latencies(report.append("command ").append(COMMANDS[i]), commands[i]);
+        }
+        latencies(report.append("lockWait"), lockWaits);
+        report.append(String.format(Locale.ROOT, "dig count %d mean %.1f p99 %d max %d\n",
+                revealed.getCount(), revealed.getMean(), revealed.getPercentile(0.99), revealed.getMax()));
+        return report.toString();
+    }
+    
+    private static void latencies(StringBuilder report, LatencyHistogram histogram) {
+        report.append(String.format(Locale.ROOT, " count %d p50 %.1f p99 %.1f p999 %.1f max %.1f\n",
+                histogram.getCount(), histogram.getPercentile(0.5) / 1e3, histogram.getPercentile(0.99) / 1e3,
+                histogram.getPercentile(0.999) / 1e3, histogram.getMax() / 1e3));
+    }
+}
@@ -0,0 +1,49 @@
+package minesweeper.server;
+
+/*
+ * Management interface of Metrics, registered with the platform MBean server as minesweeper.server:type=Metrics.
+ * Latencies are in microseconds.
+ */
+public interface MetricsMBean {
+    int getActiveConnections();
+    
+    long getResponseBytes();
+    
+    /**
+     * @return number of connections dropped because they stopped reading their responses, see Outbox
+     */
+    long getSlowClientsDropped();
+    
+    /**
+     * @return request names, in the same order as the other per-command attributes
+     */
+    String[] getCommands();
+    
+    long[] getCommandCounts();
+    
+    double[] getCommandP50Micros();
+    
+    double[] getCommandP99Micros();
+    
+    double[] getCommandP999Micros();
+    
+    /**
+     * @return number of times a move or look had to wait for a board lock held by another thread
+     */
+    long getLockWaits();
+    
+    double getLockWaitP99Micros();
+    
+    double getLockWaitMaxMicros();
+    
+    long getDigs();
+    
+    double getMeanSquaresRevealed();
+    
+    long getMaxSquaresRevealed();
+    
+    /**
+     * @return the same report as the stats request
+     */
+    String report();
+}
@@ -4,30 +4,136 @@ package minesweeper.server;
  * This server is thread-safe because each time a new client is connected, a new thread is created and ran, 
  * independent from the server itself. The server blocks until a thread is created, so we are confident 
  * that there are no race conditions during creation. Any mutations to any of the server's objects are either synchronized 
- * (through the use of the Object lock), or are accessed by the thread itself. For example, each thread can 
- * access the board simultaneously because the board is declared thread-safe, and the thread can only 
- * access the synchronized public methods of the board. With that being said, this implementation 
+ * (through the RoomRegistry, which counts the players of each room), or are accessed by the thread itself. For example,
+ * each thread can access the board simultaneously because the board is declared thread-safe, and the thread can only 
+ * access the thread-safe public methods of the board. With that being said, this implementation 
  * of the server is thread-safe for the objectives that we want to accomplish (multiple clients running 
  * on different threads). 
+ * 
+ * The system property minesweeper.engine selects how connections are served. "thread" (the default) is the
+ * thread-per-connection loop in this class. A connection's answers and pushed updates are written by its
+ * ConnectionWriter on a pool of minesweeper.writers threads shared by all connections (one per core by default), so
+ * that a client that does not read cannot hold up the feed of its room; the engine still costs a thread per
+ * connection, and a server expecting many connections should use "nio". That serves every connection from one
+ * selector thread and a pool of minesweeper.workers worker threads (one per core by default), see NioEngine; it
+ * keeps the same line protocol and disconnect rules while holding tens of thousands of idle or slow connections
+ * without a thread for each.
+ * 
+ * Either engine queues at most minesweeper.maxQueuedBytes bytes of answers (4 MB by default) for a client before
+ * it stops reading the client's requests, and drops a client that stays over that for minesweeper.slowClientMillis
+ * milliseconds (10 seconds by default), see Outbox. The thread engine also drops a client that takes nothing of a
+ * write for that long, since the write holds one of the shared writer threads. Both are read when the server is made.
+ * 
+ * One server hosts many games. The board given on the command line is the "default" room, which every connection
+ * starts in; "create NAME -s SIZE" or "create NAME -f FILE" makes a new room and "join NAME" moves the connection to
+ * an existing one. Rooms nobody has used for minesweeper.roomIdleMillis (10 minutes by default) are evicted, see
+ * RoomRegistry.
  */
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class MinesweeperServer {
     private final ServerSocket serverSocket;
+    /** Server channel when serving with the "nio" engine, null otherwise. */
+    private final ServerSocketChannel serverChannel;
     /** True if the server should _not_ disconnect a client after a BOOM message. */
     private final boolean debug;
-    Object lock = new Object();
-    int players = 0;
-    private static Board board;
+    private static RoomRegistry rooms;
+    /** Longest request line accepted, and most pipelined bytes buffered per connection. */
+    static final int MAX_REQUEST = 8192;
+    /** How often the thread engine looks for clients that are too slow, see ConnectionWriter.sweep. */
+    private static final long SWEEP_MILLIS = 1000;
+    /** Largest board a client may create a room with. */
+    private static final int MAX_ROOM_SIZE = Integer.getInteger("minesweeper.maxRoomSize", 1000);
+    /** Directory the files of "create NAME -f FILE" are looked up in. */
+    private static final File BOARD_DIR = new File(System.getProperty("minesweeper.boardDir", "inputs"));
+    /** Most bytes of answers queued for a connection before it is over, see Outbox. */
+    private final long maxQueuedBytes;
+    /** How long a connection's queue may stay over before the client is dropped, see Outbox. */
+    private final long slowClientNanos;
+    // Thread engine only
+    /** Threads writing the answers of every connection, see ConnectionWriter; null with the "nio" engine. */
+    private final ExecutorService writers;
+    /** Connections whose ConnectionWriter is not closed yet, swept once a second for clients that are too slow. */
+    private final Set<ConnectionWriter> connections = ConcurrentHashMap.newKeySet();
 
     /**
      * Make a MinesweeperServer that listens for connections on port.
      * @param port port number, requires 0 <= port <= 65535.
      */
     public MinesweeperServer(int port, boolean debug) throws IOException {
-        serverSocket = new ServerSocket(port);
+        if (System.getProperty("minesweeper.engine", "thread").equals("nio")) {
+            serverChannel = NioEngine.open(port);
+            serverSocket = serverChannel.socket();
+        } else {
+            serverChannel = null;
+            serverSocket = new ServerSocket(port);
+        }
         this.debug = debug;
+        this.maxQueuedBytes = Long.getLong("minesweeper.maxQueuedBytes", 4L << 20);
+        this.slowClientNanos =
+                TimeUnit.MILLISECONDS.toNanos(Long.getLong("minesweeper.slowClientMillis", 10000));
+        if (serverChannel == null) {
+            this.writers = Executors.newFixedThreadPool(
+                    Integer.getInteger("minesweeper.writers", Runtime.getRuntime().availableProcessors()),
+                    RoomRegistry.daemon("connection-writer"));
+            ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(
+                    RoomRegistry.daemon("connection-sweeper"));
+            sweeper.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    for (ConnectionWriter writer : connections) {
+                        writer.sweep();
+                    }
+                }
+            }, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            this.writers = null;
+        }
+    }
+    
+    /**
+     * @return true if the server should _not_ disconnect a client after a BOOM message
+     */
+    boolean isDebug() {
+        return debug;
+    }
+    
+    /**
+     * @return an empty queue for the answers of a new connection
+     */
+    Outbox newOutbox() {
+        return new Outbox(maxQueuedBytes, slowClientNanos);
+    }
+    
+    /**
+     * @param players number of people in the default room, including the client that just connected
+     * @return message greeting a client that just connected
+     */
+    static String welcome(int players) {
+        return "Welcome to Minesweeper. " + players + " people are playing including you. Type 'help' for help.\n";
+    }
+    
+    /**
+     * @return rooms hosted by the server
+     */
+    static RoomRegistry rooms() {
+        return rooms;
     }
 
     /**
@@ -37,18 +143,17 @@ public class MinesweeperServer {
      * (IOExceptions from individual clients do *not* terminate serve()).
      */
     public void serve() throws IOException {
+        if (serverChannel != null) {
+            new NioEngine(this, serverChannel).serve();
+            return;
+        }
         while (true) {
             // block until a client connects
             Socket socket = serverSocket.accept();
             // Creates new thread for each connection
             Thread t = new Thread(new newRunnable(socket));
-            
-            // Make sure these two commands occur are synchronized
-            synchronized(lock) {
-                t.start();
-                players++;
-            }
-            
+            t.start();
+
         }
     }
     
@@ -70,42 +175,293 @@ public class MinesweeperServer {
 
     /**
      * Handle a single client connection.  Returns when client disconnects.
+     * Requests may be pipelined: every request that arrived in one read is answered before the answers are
+     * flushed together, so a client sending many requests in one packet gets its answers in one packet too.
+     * The answers are written by a ConnectionWriter on the shared writer threads, so a client that does not read
+     * them only holds up its own requests, and is dropped if it stays over its Outbox's limit.
      * @param socket socket where the client is connected
      * @throws IOException if connection has an error or terminates unexpectedly
      */
     private void handleConnection(Socket socket) throws IOException {
-        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        InputStream in = socket.getInputStream();
+        final ConnectionWriter writer = new ConnectionWriter(socket, newOutbox(), writers, slowClientNanos);
+        connections.add(writer);
+        CommandParser parser = new CommandParser(MAX_REQUEST);
+        Command command = new Command();
+        Session session = new Session(rooms.getDefault());
+        session.setSubscriber(new BoardFeed.Subscriber() {
+            public boolean push(byte[] update) {
+                if (!writer.offer(update))
+                    return false;
+                Metrics.get().recordResponse(update.length);
+                return true;
+            }
+        });
 
-        out.println("Welcome to Minesweeper. " + players + " people are playing including you. Type 'help' for help.");
+        Metrics.get().connectionOpened();
+        byte[] welcome = welcome(rooms.enter(session.getRoom())).getBytes(StandardCharsets.US_ASCII);
+        Metrics.get().recordResponse(welcome.length);
+        writer.offer(welcome);
         try {
-            for (String line =in.readLine(); line!=null; line=in.readLine()) {
-                String output = handleRequest(line);
-                if(output == null)
-                    continue;
-                // Terminates connection for these two cases
-                if (output.equals("BOOM!\n") && debug==false) {
-                    out.print(output);
-                    return;
+            while (true) {
+                while (parser.next(command)) {
+                    if (!respond(command, session, writer))
+                        return;
                 }
-                if (output.equals("bye")) {
-                    return;
+                int n;
+                try {
+                    n = parser.read(in);
+                } catch (IOException e) {
+                    // The writer closes the socket when the client is gone or too slow
+                    if (writer.isClosed())
+                        return;
+                    throw e;
                 }
-                // Print the output message and then flushes the buffer
-                if(output != null) {
-                    out.print(output);
-                    out.flush();
+                if (n < 0) {
+                    if (parser.finish(command))
+                        respond(command, session, writer);
+                    return;
                 }
             }
         } finally {
-            // Makes sure these three occur together
-            synchronized(lock) {
-                players--;
-                out.close();
-                in.close();
+            session.unsubscribe();
+            rooms.leave(session.getRoom());
+            Metrics.get().connectionClosed();
+            // Lets the writer send what is queued, unless the client does not take it in time
+            try {
+                writer.finish();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            writer.close();
+            connections.remove(writer);
         }
     }
+    
+    /**
+     * Writes the responses queued for one connection of the thread engine on the shared writer threads, so that
+     * neither the connection's thread nor a BoardFeed's thread blocks on a client that does not read. A writer is
+     * queued on the pool when something is queued for it and it is not queued or running already, and runs until
+     * its Outbox is empty, so a connection's responses are still written in order by one thread at a time. A client
+     * that takes nothing of a write for the Outbox's grace would keep a shared thread blocked, so sweep drops it.
+     * The writer's monitor guards its Outbox and flags.
+     */
+    private static class ConnectionWriter implements Runnable {
+        /** Most bytes written at once, so a long write shows its progress to sweep. */
+        private static final int MAX_WRITE = 1 << 16;
+        
+        private final Socket socket;
+        private final OutputStream out;
+        private final Outbox outbox;
+        private final Executor executor;
+        private final long graceNanos;
+        /** Responses being written; only used by the thread running the writer. */
+        private final ByteBuffer[] taken = new ByteBuffer[64];
+        /** System.nanoTime() when the running write last made progress, or -1 while nothing is being written. */
+        private volatile long writingSince = -1;
+        // Guarded by this
+        /** True while the writer is queued on the executor or running. */
+        private boolean scheduled = false;
+        private boolean closed = false;
+        
+        ConnectionWriter(Socket socket, Outbox outbox, Executor executor, long graceNanos) throws IOException {
+            this.socket = socket;
+            this.outbox = outbox;
+            this.executor = executor;
+            this.graceNanos = graceNanos;
+            this.out = new BufferedOutputStream(socket.getOutputStream(), MAX_WRITE);
+        }
+        
+        /**
+         * Queues a response that is not a board message, such as a pushed update
+         * @return false if the connection is closed, or was just dropped for staying over its Outbox's limit
+         */
+        boolean offer(byte[] bytes) {
+            return offer(bytes, null, -1, Board.PLAIN);
+        }
+        
+        /**
+         * Queues a response, see Outbox.offer
+         * @return false if the connection is closed, or was just dropped for staying over its Outbox's limit
+         */
+        boolean offer(byte[] bytes, Board board, int kind, int encoding) {
+            boolean slow;
+            synchronized (this) {
+                if (closed)
+                    return false;
+                slow = !outbox.offer(bytes, board, kind, encoding);
+                if (!slow && !scheduled) {
+                    scheduled = true;
+                    executor.execute(this);
+                }
+            }
+            if (slow)
+                drop();
+            return !slow;
+        }
+        
+        /**
+         * Waits while more than the Outbox's limit is queued, and drops the client if it stays over the limit
+         * @return false if the connection is closed
+         * @throws InterruptedIOException if interrupted while waiting
+         */
+        boolean awaitRoom() throws InterruptedIOException {
+            boolean slow;
+            synchronized (this) {
+                while (!closed && outbox.isOver() && !outbox.isTooSlow()) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, outbox.graceLeft());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for a client to read");
+                    }
+                }
+                if (closed)
+                    return false;
+                slow = outbox.isTooSlow();
+            }
+            if (slow)
+                drop();
+            return !slow;
+        }
+        
+        synchronized boolean isClosed() {
+            return closed;
+        }
+        
+        /**
+         * Waits until everything queued has been written, or for the Outbox's grace if the client does not take it
+         * @throws InterruptedException if interrupted while waiting
+         */
+        synchronized void finish() throws InterruptedException {
+            long deadline = System.nanoTime() + graceNanos;
+            while (!closed && scheduled && deadline - System.nanoTime() > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, deadline - System.nanoTime());
+            }
+        }
+        
+        /**
+         * Closes the connection at once, dropping what is queued
+         */
+        void close() {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                outbox.clear();
+                notifyAll();
+            }
+            try {
+                // Also wakes up the connection's thread and the writer if they are blocked on the socket
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        
+        /**
+         * Drops the client if it stays over its Outbox's limit, or a write has not moved for the Outbox's grace,
+         * even though nothing more is queued for it
+         */
+        void sweep() {
+            long since = writingSince;
+            boolean slow;
+            synchronized (this) {
+                slow = !closed && (outbox.isTooSlow() || (since >= 0 && System.nanoTime() - since >= graceNanos));
+            }
+            if (slow)
+                drop();
+        }
+        
+        private void drop() {
+            Metrics.get().slowClientDropped();
+            close();
+        }
+        
+        /**
+         * Writes what is queued, flushing whenever the queue runs empty, until the queue is empty or the connection
+         * is closed
+         */
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    int n;
+                    synchronized (this) {
+                        if (closed || outbox.isEmpty()) {
+                            scheduled = false;
+                            notifyAll();
+                            return;
+                        }
+                        n = outbox.take(taken);
+                    }
+                    for (int i=0; i<n; i++) {
+                        ByteBuffer buffer = taken[i];
+                        for (int at=buffer.position(); at<buffer.limit(); at+=MAX_WRITE) {
+                            writingSince = System.nanoTime();
+                            out.write(buffer.array(), at, Math.min(MAX_WRITE, buffer.limit() - at));
+                        }
+                    }
+                    boolean empty;
+                    synchronized (this) {
+                        for (int i=0; i<n; i++) {
+                            taken[i].position(taken[i].limit());
+                        }
+                        outbox.written();
+                        empty = outbox.isEmpty();
+                        notifyAll();
+                    }
+                    Arrays.fill(taken, 0, n, null);
+                    // Answers queued together go out together
+                    if (empty) {
+                        writingSince = System.nanoTime();
+                        out.flush();
+                    }
+                    writingSince = -1;
+                }
+            } catch (IOException e) {
+                // The client is gone, or the connection was closed under the writer
+                writingSince = -1;
+                close();
+                synchronized (this) {
+                    scheduled = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Handles one request and queues the answer
+     * @param command request to handle
+     * @param session state of the connection
+     * @param writer where to queue the answer
+     * @return false if the connection should be closed
+     * @throws IOException if the answer cannot be written
+     */
+    private boolean respond(Command command, Session session, ConnectionWriter writer) throws IOException {
+        String output = handleRequest(command, session);
+        if(output == null)
+            return true;
+        if (output.equals("bye")) {
+            return false;
+        }
+        // The answer must not reach the client before the move it reports is journaled
+        MoveJournal.awaitDurable();
+        // Board messages come out already encoded, shared with every other connection sending the same version
+        Board board = session.getRoom().getBoard();
+        int encoding = session.getEncoding();
+        byte[] bytes = board.encode(output, encoding);
+        Metrics.get().recordResponse(bytes.length);
+        if (!writer.offer(bytes, board, board.coalescable(output), encoding))
+            return false;
+        // Updates may only follow the answer to subscribe, which carries the version they continue from
+        BoardFeed.Subscription subscription = session.getSubscription();
+        if (subscription != null)
+            subscription.activate();
+        // Terminates connection after BOOM unless debugging
+        return !(output.equals("BOOM!\n") && debug==false) && writer.awaitRoom();
+    }
 
     /**
      * handler for client input
@@ -114,47 +470,265 @@ public class MinesweeperServer {
      * appropriate message to the user.
      * 
      * @param input
+     * @param session state of the connection the input came from
      * @return string that the board returns
      */
-    private static String handleRequest(String input) {
-        String regex = "(look)|(dig \\d+ \\d+)|(flag \\d+ \\d+)|" +
-                "(deflag \\d+ \\d+)|(help)|(bye)";
+    static String handleRequest(String input, Session session) {
+        byte[] line = input.getBytes(StandardCharsets.US_ASCII);
+        return handleRequest(new Command().parse(line, 0, line.length), session);
+    }
+    
+    /**
+     * handler for a parsed request
+     * 
+     * look, dig, flag, deflag, batch, hint, help, bye and stats are answered straight from the command; the other
+     * requests are handled from their text by handleSessionRequest.
+     * 
+     * "batch [stop] MOVE; MOVE; ..." applies all its dig, flag and deflag moves at once (see Board.batch) and answers
+     * once for all of them. With "stop", the moves after the first dig that finds a bomb are skipped.
+     * 
+     * "look X Y W H" answers with the board message of the window of W columns and H rows whose top left square
+     * is (X,Y), cut off at the edges of the board (see Board.look(int, int, int, int)). A window that does not start
+     * on the board is invalid input.
+     * 
+     * "subscribe" answers with the board message preceded by its version, as look does in delta mode, and from
+     * then on the server pushes update messages listing the squares other moves change, at most one per tick (see
+     * BoardFeed). "unsubscribe" stops the updates and answers like look. Moving to another room unsubscribes.
+     * 
+     * "hint" answers with a square that is provably safe to dig or, if there is none, the square least likely to
+     * hold a bomb and its probability (see Board.hint).
+     * 
+     * "stats" answers with the server's metrics (see Metrics.report). The time taken by every request is recorded
+     * in Metrics under the kind of request it was.
+     * 
+     * @param command parsed request
+     * @param session state of the connection the request came from
+     * @return string that the board returns, or null for invalid input
+     */
+    static String handleRequest(Command command, Session session) {
+        long start = System.nanoTime();
+        String output = execute(command, session);
+        Metrics.get().recordCommand(command.getOp(), System.nanoTime() - start);
+        return output;
+    }
+    
+    /**
+     * Does what handleRequest is asked to do
+     * @param command parsed request
+     * @param session state of the connection the request came from
+     * @return string that the board returns, or null for invalid input
+     */
+    private static String execute(Command command, Session session) {
+        Room room = session.getRoom();
+        Board board = room.getBoard();
+        int x = command.getX();
+        int y = command.getY();
+        switch (command.getOp()) {
+        case Command.LOOK:
+            room.touch();
+            return boardMessage(board, session);
+        case Command.VIEW:
+            room.touch();
+            if (x >= board.getLength() || y >= board.getLength())
+                return null;
+            if (session.isDelta())
+                return encoded(board.lookVersion(x, y, command.getWidth(), command.getHeight()), board, session);
+            return encoded(board.look(x, y, command.getWidth(), command.getHeight()), board, session);
+        case Command.SUBSCRIBE:
+            room.touch();
+            if (session.getSubscriber() == null)
+                return null;
+            session.unsubscribe();
+            // Subscribing before taking the snapshot means no later change can be missed
+            session.setSubscription(board.subscribe(session.getSubscriber()));
+            return encoded(board.lookVersion(), board, session);
+        case Command.UNSUBSCRIBE:
+            session.unsubscribe();
+            return boardMessage(board, session);
+        case Command.DIG:
+            room.touch();
+            if (session.isDelta())
+                return board.digDelta(x, y);
+            return encoded(board.dig(x, y), board, session);
+        case Command.FLAG:
+            room.touch();
+            if (session.isDelta())
+                return board.flagDelta(x, y);
+            return encoded(board.flag(x,y), board, session);
+        case Command.DEFLAG:
+            room.touch();
+            if (session.isDelta())
+                return board.deflagDelta(x, y);
+            return encoded(board.deflag(x,y), board, session);
+        case Command.BATCH:
+            room.touch();
+            String answer = board.batch(command.getMoveKinds(), command.getMoveXs(), command.getMoveYs(),
+                    command.getMoveCount(), command.isStopAtBoom(), session.isDelta());
+            return session.isDelta() ? answer : encoded(answer, board, session);
+        case Command.HINT:
+            room.touch();
+            return board.hint();
+        case Command.HELP:
+            return "Please go to office hours for help\n";
+        case Command.BYE:
+            return "bye";
+        case Command.STATS:
+            return Metrics.get().report();
+        case Command.OTHER:
+            return handleSessionRequest(command.text(), session);
+        default:
+            //invalid input
+            return null;
+        }
+    }
+
+    /**
+     * @param board the connection's board
+     * @param session state of the connection
+     * @return board message of board as the connection wants it: after its version line in delta mode, and
+     *         run-length encoded if it asked for RLE
+     */
+    private static String boardMessage(Board board, Session session) {
+        return encoded(session.isDelta() ? board.lookVersion() : board.look(), board, session);
+    }
+    
+    /**
+     * @param message board message, or an answer given instead of one, such as BOOM!, which is kept as it is
+     * @param board the board the message is of
+     * @param session state of the connection
+     * @return message run-length encoded if the connection asked for RLE (see Board.rle), otherwise message
+     */
+    private static String encoded(String message, Board board, Session session) {
+        if (session.getEncoding() == Board.RLE)
+            return board.rle(message);
+        return message;
+    }
+    
+    /**
+     * handler for requests that change the connection's session rather than its board
+     * 
+     * "delta on" switches the connection to delta mode, where dig, flag and deflag answer with the squares
+     * they changed (see Board.digDelta) and look prefixes the board message with the board version, so the
+     * client can resync. "delta off" switches back to board messages.
+     * 
+     * "encoding plain|rle|deflate" picks how the connection's answers are encoded, answering with the board message
+     * in the new encoding. "rle" run-length encodes the rows of every board message (see Board.rle); "deflate"
+     * sends every answer of 1 KB or more compressed, in a frame starting with "deflate N" (see Board.encode).
+     * "plain", the default, sends answers as they are.
+     * 
+     * "join NAME" moves the connection to the room called NAME. "create NAME -s SIZE" and "create NAME -f FILE"
+     * make a room with a random SIZE*SIZE board or the board stored in FILE (see main) and move the connection
+     * there. Both answer with the board message of the new room. SIZE and the width of the board in FILE are at
+     * most minesweeper.maxRoomSize (1000 by default), and no room is made while the registry is full (see
+     * RoomRegistry). FILE is a relative path inside the directory minesweeper.boardDir ("inputs" by default);
+     * clients cannot name files anywhere else, nor tell which exist.
+     * 
+     * @param input
+     * @param session state of the connection the input came from
+     * @return string that the board returns, or null for invalid input
+     */
+    private static String handleSessionRequest(String input, Session session) {
+        String regex = "(delta (on|off))|(join [\\w-]+)|(create [\\w-]+ -s \\d+)|(create [\\w-]+ -f \\S+)"
+                + "|(encoding (plain|rle|deflate))";
         if(!input.matches(regex)) {
             //invalid input
             return null;
         }
         String[] tokens = input.split(" ");
-        if (tokens[0].equals("look")) {
-            // 'look' request
-            return board.look();
-        } else if (tokens[0].equals("help")) {
-            // 'help' request
-            return "Please go to office hours for help\n";
-        } else if (tokens[0].equals("bye")) {
-            // 'bye' request
-            return "bye";
-        } else {
-            int x = Integer.parseInt(tokens[1]);
-            int y = Integer.parseInt(tokens[2]);
-            if (tokens[0].equals("dig")) {
-                // 'dig x y' request
-                return board.dig(x, y);
-            } else if (tokens[0].equals("flag")) {
-                // 'flag x y' request
-                return board.flag(x,y);
-            } else if (tokens[0].equals("deflag")) {
-                // 'deflag x y' request
-                return board.deflag(x,y);
+        Room room = session.getRoom();
+        room.touch();
+        Board board = room.getBoard();
+        if (tokens[0].equals("join")) {
+            // 'join NAME' request
+            Room to = rooms.move(room, tokens[1]);
+            if (to == null)
+                return "No room named " + tokens[1] + "\n";
+            session.unsubscribe();
+            session.setRoom(to);
+            board = to.getBoard();
+            return boardMessage(board, session);
+        } else if (tokens[0].equals("create")) {
+            // 'create NAME -s SIZE' or 'create NAME -f FILE' request
+            if (rooms.isFull())
+                return "Too many rooms\n";
+            if (tokens[2].equals("-s")) {
+                int size;
+                try {
+                    size = Integer.parseInt(tokens[3]);
+                } catch (NumberFormatException e) {
+                    size = Integer.MAX_VALUE;
+                }
+                if (size < 1 || size > MAX_ROOM_SIZE)
+                    return "Rooms must be 1 to " + MAX_ROOM_SIZE + " squares wide\n";
+                board = new Board(size);
+            } else {
+                // The same answer whatever went wrong, so it tells nothing about the files outside the directory
+                String noBoard = "No board named " + tokens[3] + "\n";
+                File file = boardFile(tokens[3]);
+                // Each square takes two bytes in the file, so this rejects big boards before reading them
+                if (file == null || file.length() > 2L*MAX_ROOM_SIZE*MAX_ROOM_SIZE)
+                    return noBoard;
+                try {
+                    board = new Board(file);
+                } catch (IOException | RuntimeException e) {
+                    // Unreadable, or not following the grammar
+                    return noBoard;
+                }
+                if (board.getLength() > MAX_ROOM_SIZE)
+                    return noBoard;
             }
+            if (rooms.create(tokens[1], board) == null)
+                return rooms.get(tokens[1]) != null ? "There is already a room named " + tokens[1] + "\n"
+                        : "Too many rooms\n";
+            Room to = rooms.move(room, tokens[1]);
+            if (to == null)
+                return "No room named " + tokens[1] + "\n";
+            session.unsubscribe();
+            session.setRoom(to);
+            return boardMessage(board, session);
+        } else if (tokens[0].equals("encoding")) {
+            // 'encoding plain|rle|deflate' request
+            session.setEncoding(tokens[1].equals("rle") ? Board.RLE
+                    : tokens[1].equals("deflate") ? Board.DEFLATE : Board.PLAIN);
+            return boardMessage(board, session);
+        } else if (tokens[0].equals("delta")) {
+            // 'delta on|off' request
+            session.setDelta(tokens[1].equals("on"));
+            return boardMessage(board, session);
         }
         // Should never get here--make sure to return in each of the valid cases above.
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Finds the board file a client asked for with "create NAME -f FILE"
+     * @param name FILE as the client sent it
+     * @return the file, or null unless name is a relative path without ".." naming a file inside the board
+     *         directory, once links are followed
+     */
+    static File boardFile(String name) {
+        try {
+            Path path = Paths.get(name);
+            if (path.isAbsolute())
+                return null;
+            for (Path part : path) {
+                if (part.toString().equals(".."))
+                    return null;
+            }
+            Path dir = BOARD_DIR.toPath().toRealPath();
+            Path file = dir.resolve(path).toRealPath();
+            if (!file.startsWith(dir) || !Files.isRegularFile(file))
+                return null;
+            return file.toFile();
+        } catch (IOException | InvalidPathException e) {
+            return null;
+        }
+    }
+
     /**
      * Start a MinesweeperServer running on the default port (4444).
      * 
-     * Usage: MinesweeperServer [DEBUG [(-s SIZE | -f FILE)]]
+     * Usage: MinesweeperServer [DEBUG [(-s SIZE | -f FILE | -r SNAPSHOT)]]
      * 
      * The DEBUG argument should be either 'true' or 'false'. The server should disconnect a client
      * after a BOOM message if and only if the DEBUG flag is set to 'false'.
@@ -177,17 +751,42 @@ public class MinesweeperServer {
      * SPACE :== " "
      * NEWLINE :== "\n" 
      * 
-     * If neither FILE nor SIZE is given, generate a random board of size 10x10. If no arguments are
-     * specified, do the same and additionally assume DEBUG is 'false'. FILE and SIZE may not be
-     * specified simultaneously, and if one is specified, DEBUG must also be specified.
+     * SNAPSHOT is an optional argument specifying a board snapshot written by the server (see
+     * BoardSnapshot). The board is restored as it was when the snapshot was taken, including every
+     * square dug or flagged. E.g. "MinesweeperServer false -r board.snapshot".
+     * 
+     * If neither FILE nor SIZE nor SNAPSHOT is given, generate a random board of size 10x10. If no
+     * arguments are specified, do the same and additionally assume DEBUG is 'false'. Only one of FILE,
+     * SIZE and SNAPSHOT may be specified, and if one is specified, DEBUG must also be specified.
+     * 
+     * Random boards at least minesweeper.lazySize squares wide (4096 by default) are generated lazily, a
+     * 64x64 chunk at a time as players reach it (see Board.lazy), so SIZE may be far larger than would fit
+     * in memory. Lazy boards cannot be snapshotted, so the server refuses to start with minesweeper.snapshot set
+     * for one.
+     * 
+     * The system property minesweeper.seed seeds the bombs of the random board; the same seed and SIZE
+     * always give the same board, so a journal can be replayed onto it. Without it the seed is random.
+     * 
+     * The system property minesweeper.snapshot names a file the server saves a snapshot of the default
+     * room's board to every minesweeper.snapshotMillis milliseconds (one minute by default) and when it
+     * shuts down. Restarting with "-r" and the same file resumes the game.
+     * 
+     * The system property minesweeper.journal names a file every move that changes the default room's
+     * board is journaled to before it is answered (see MoveJournal). At startup the journaled moves
+     * that the starting board (FILE, SNAPSHOT, or SIZE with minesweeper.seed, which the server requires
+     * with SIZE) does not contain yet are replayed, so after a crash, restarting with the same arguments
+     * rebuilds the board exactly. A journal written for another board is refused. Each snapshot saved
+     * through minesweeper.snapshot drops the moves it holds from the journal, after which the server must
+     * be restarted from that snapshot.
      * 
      * The system property minesweeper.customport may be used to specify a listening port other than
      * the default (used by the autograder only).
      */
     public static void main(String[] args) {
-        // We parse the command-line arguments for you. Do not change this method.
+        // We parse the command-line arguments for you.
         boolean debug = false;
         File file = null;
+        File snapshot = null;
         Integer size = 10; // Default size.
         try {
             if (args.length != 0 && args.length != 1 && args.length != 3)
@@ -217,12 +816,19 @@ public class MinesweeperServer {
                         return;
                     }
                     size = null;
+                } else if (args[1].equals("-r")) {
+                    snapshot = new File(args[2]);
+                    if (!snapshot.isFile()) {
+                        System.err.println("file not found: \"" + snapshot + "\"");
+                        return;
+                    }
+                    size = null;
                 } else {
                     throw new IllegalArgumentException();
                 }
             }
         } catch (IllegalArgumentException e) {
-            System.err.println("usage: MinesweeperServer DEBUG [(-s SIZE | -f FILE)]");
+            System.err.println("usage: MinesweeperServer DEBUG [(-s SIZE | -f FILE | -r SNAPSHOT)]");
             return;
         }
         // Allow the autograder to change the port number programmatically.
@@ -234,7 +840,9 @@ public class MinesweeperServer {
             port = Integer.parseInt(portProp);
         }
         try {
-            runMinesweeperServer(debug, file, size, port);
+            runMinesweeperServer(debug, file, size, snapshot, port);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -254,13 +862,60 @@ public class MinesweeperServer {
     public static void runMinesweeperServer(boolean debug, File file, Integer size, int port)
             throws IOException
     {
+        runMinesweeperServer(debug, file, size, null, port);
+    }
+
+    /**
+     * Start a MinesweeperServer running on the specified port, with either a random new board, a
+     * board loaded from a file or a board restored from a snapshot. Exactly one of the file, size and
+     * snapshot arguments must be non-null.
+     * 
+     * @param debug The server should disconnect a client after a BOOM message if and only if this
+     *        argument is false.
+     * @param size If this argument is not null, start with a random board of size size * size.
+     * @param file If this argument is not null, start with a board loaded from the specified file,
+     *        according to the input file format defined in the JavaDoc for main().
+     * @param snapshot If this argument is not null, start with the board restored from the specified
+     *        snapshot, see BoardSnapshot.
+     * @param port The network port on which the server should listen.
+     * @throws IllegalArgumentException if the system properties ask for something the board cannot do, such as
+     *         snapshots of a lazy board or a journal of a random board with no minesweeper.seed; the server is not
+     *         started
+     */
+    public static void runMinesweeperServer(boolean debug, File file, Integer size, File snapshot, int port)
+            throws IOException
+    {
+        Board board = null;
         if (size!=null) {
-            board = new Board(size);
+            long seed = Long.getLong("minesweeper.seed", new Random().nextLong());
+            if (size >= Integer.getInteger("minesweeper.lazySize", 4096))
+                board = Board.lazy(size, seed, 0.25);
+            else
+                board = new Board(size, seed, 0.25);
         }
         if (file!=null) {
-            board = new Board(readContent(file));
+            board = new Board(file);
+        }
+        if (snapshot!=null) {
+            board = BoardSnapshot.read(snapshot);
+        }
+        String snapshotProp = System.getProperty("minesweeper.snapshot");
+        if (snapshotProp != null && board.isLazy())
+            throw new IllegalArgumentException("minesweeper.snapshot cannot be used with a board " + size
+                    + " squares wide, which is generated lazily (see minesweeper.lazySize) and cannot be saved");
+        String journalProp = System.getProperty("minesweeper.journal");
+        if (journalProp != null && size != null && System.getProperty("minesweeper.seed") == null)
+            throw new IllegalArgumentException("minesweeper.journal needs minesweeper.seed with -s, or the moves "
+                    + "journaled for one random board would be replayed onto another");
+        MoveJournal journal = journalProp != null ? MoveJournal.open(new File(journalProp), board) : null;
+        if (snapshotProp != null) {
+            long snapshotMillis = Long.getLong("minesweeper.snapshotMillis", 60*1000);
+            BoardSnapshot.schedule(board, new File(snapshotProp), snapshotMillis, journal);
         }
+        int shards = Integer.getInteger("minesweeper.workers", Runtime.getRuntime().availableProcessors());
+        rooms = new RoomRegistry(board, shards, Long.getLong("minesweeper.roomIdleMillis", 10*60*1000));
         MinesweeperServer server = new MinesweeperServer(port, debug);
+        Metrics.register();
         server.serve();
 
     }
@@ -0,0 +1,389 @@
+package minesweeper.server;
+
+/*
+ * Append-only journal of the moves that changed a board, so that a crash loses none of the moves players were told
+ * about. Together with the board the server started from (a board file or a BoardSnapshot), the journal rebuilds the
+ * exact board: open replays every journaled move the starting board does not already contain.
+ *
+ * Board appends each move that changed it while still holding the move's locks, but append only copies the move
+ * into an in-memory buffer. A flusher thread writes the buffer out and fsyncs it without holding any board lock, and
+ * every move appended while one fsync runs goes out with the next, so under load many players' moves share one
+ * fsync (group commit). A handler calls awaitDurable before sending an answer, which waits until the moves the
+ * answering thread made are on disk.
+ *
+ * The file is a header followed by a sequence of groups, one per write:
+ *
+ * HEADER     MAGIC int "MSWJ", FORMAT int (currently 1), SIDE int (length of each side of the board), FINGERPRINT
+ *            long (Board.fingerprint), BASE long (version of the board the journal starts from)
+ * GROUP      LENGTH int, CRC int (CRC-32 of the records), then LENGTH bytes of records
+ * RECORD     KIND byte (Board.MOVE_DIG, MOVE_FLAG or MOVE_DEFLAG), X int, Y int, VERSION long
+ *
+ * all big-endian. VERSION is the board version the move produced. A snapshot holds exactly the moves up to its
+ * version, since it is taken under the board's write lock, so replay skips moves the starting board's version
+ * already covers. A group cut short or damaged by a crash was never reported durable, so replay stops there and the
+ * file is truncated to the groups before it.
+ *
+ * The header is written when the journal is created, and open refuses a board of another size or with other bombs
+ * (a random board started without the same minesweeper.seed, say), or one older than BASE, whose moves up to BASE
+ * are not in the journal any more. Once a snapshot holds every move up to some version, compact rewrites the journal
+ * without those moves and with that version as its BASE, so the journal only grows between snapshots.
+ *
+ * The journal is threadsafe: the buffer and the count of appended moves are guarded by the journal's monitor, which
+ * only the flusher waits on, the count of durable moves and the failure by the durability monitor, which the
+ * threads in awaitDurable wait on, and the file is only touched by open and then under the file lock by the flusher
+ * thread and compact. Keeping the two apart means an append, made under a board lock, wakes nobody but an idle
+ * flusher.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+public class MoveJournal {
+    private static final int MAGIC = 0x4d53_574a; // "MSWJ"
+    private static final int FORMAT = 1;
+    private static final int HEADER = 28;
+    private static final int RECORD = 17;
+    private static final int GROUP_HEADER = 8;
+    
+    /** Last move each thread appended and has not yet waited for, see awaitDurable. */
+    private static final ThreadLocal<Pending> PENDING = new ThreadLocal<Pending>() {
+        @Override
+        protected Pending initialValue() {
+            return new Pending();
+        }
+    };
+    
+    private static class Pending {
+        MoveJournal journal;
+        long sequence;
+    }
+    
+    private final File file;
+    // Guarded by fileLock
+    private final Object fileLock = new Object();
+    private FileChannel channel;
+    /** SIDE and FINGERPRINT of the header, written again by compact. */
+    private final int side;
+    private final long fingerprint;
+    // Guarded by this
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    /** Buffer the flusher is writing, swapped with buffer when it takes the next group. */
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+    /** Number of moves appended so far. */
+    private long appended;
+    private boolean flusherIdle;
+    // Guarded by durability
+    private final Object durability = new Object();
+    /** Number of moves on disk; only grows, so it can be read without the monitor to skip waiting. */
+    private volatile long durable;
+    /** Why the flusher stopped, after which no more moves become durable. */
+    private volatile IOException failure;
+    
+    private MoveJournal(File file, FileChannel channel, int side, long fingerprint) {
+        this.file = file;
+        this.channel = channel;
+        this.side = side;
+        this.fingerprint = fingerprint;
+    }
+    
+    /**
+     * Opens a journal, replays onto board the journaled moves board does not contain yet, and makes board journal
+     * its moves from now on
+     * @param file journal file; created if it does not exist
+     * @param board board the server starts from, not yet shared with any other thread
+     * @return the journal
+     * @throws IOException if the journal cannot be read or written, was written for another board or from a later
+     *         version than board's, or holds moves that do not fit board
+     */
+    public static MoveJournal open(File file, Board board) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        int side = board.getLength();
+        long fingerprint = board.fingerprint();
+        try {
+            if (channel.size() == 0) {
+                writeFully(channel, header(side, fingerprint, board.getVersion()));
+                channel.force(true);
+            } else {
+                check(channel, board, side, fingerprint, file);
+            }
+            long valid = replay(channel, board, file);
+            channel.truncate(valid);
+            channel.position(valid);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        final MoveJournal journal = new MoveJournal(file, channel, side, fingerprint);
+        Thread flusher = new Thread(new Runnable() {
+            public void run() {
+                journal.flushLoop();
+            }
+        }, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        board.setJournal(journal);
+        return journal;
+    }
+    
+    /**
+     * @return a header for a journal starting from version base
+     */
+    private static ByteBuffer header(int side, long fingerprint, long base) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putInt(MAGIC).putInt(FORMAT).putInt(side).putLong(fingerprint).putLong(base).flip();
+        return header;
+    }
+    
+    /**
+     * Checks that the journal's header fits board
+     * @throws IOException if it does not, or the file is not a journal
+     */
+    private static void check(FileChannel channel, Board board, int side, long fingerprint, File file)
+            throws IOException {
+        if (channel.size() < HEADER)
+            throw new IOException("Not a move journal: " + file);
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC)
+            throw new IOException("Not a move journal: " + file);
+        int format = header.getInt();
+        if (format != FORMAT)
+            throw new IOException("Unsupported journal format " + format + ": " + file);
+        if (header.getInt() != side || header.getLong() != fingerprint)
+            throw new IOException("Journal " + file + " was written for another board; start from the same board "
+                    + "file or snapshot, or the same SIZE and minesweeper.seed");
+        long base = header.getLong();
+        if (board.getVersion() < base)
+            throw new IOException("Journal " + file + " starts from version " + base + " but the board is at version "
+                    + board.getVersion() + "; start from a snapshot at least that recent");
+    }
+    
+    /**
+     * Applies the journaled moves newer than board's version
+     * @return length of the header and the intact groups after it
+     */
+    private static long replay(FileChannel channel, Board board, File file) throws IOException {
+        long base = board.getVersion();
+        long size = channel.size();
+        long position = HEADER;
+        ByteBuffer header = ByteBuffer.allocate(GROUP_HEADER);
+        CRC32 crc = new CRC32();
+        while (size - position >= GROUP_HEADER) {
+            header.clear();
+            readFully(channel, header, position);
+            int length = header.getInt(0);
+            if (length <= 0 || length % RECORD != 0 || length > size - position - GROUP_HEADER)
+                break;
+            ByteBuffer records = ByteBuffer.allocate(length);
+            readFully(channel, records, position + GROUP_HEADER);
+            crc.reset();
+            crc.update(records.array());
+            if ((int) crc.getValue() != header.getInt(4))
+                break;
+            records.flip();
+            while (records.hasRemaining()) {
+                int kind = records.get();
+                int x = records.getInt();
+                int y = records.getInt();
+                long version = records.getLong();
+                if (version <= base)
+                    continue;
+                if (!board.replay(kind, x, y))
+                    throw new IOException("Journal " + file + " does not match the board: move " + kind + " at "
+                            + x + "," + y + " for version " + version + " changes nothing");
+            }
+            position += GROUP_HEADER + length;
+        }
+        return position;
+    }
+    
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0)
+                throw new IOException("Journal truncated while reading");
+        }
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer... buffers) throws IOException {
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffers);
+            }
+        }
+    }
+    
+    /**
+     * Drops the moves up to version, once a snapshot holds them: the journal is rewritten to a temporary file with
+     * version as its BASE and only the later moves, which then replaces it, so a crash meanwhile leaves either
+     * journal whole. Moves appended meanwhile wait in memory and go to the new file.
+     * @param version version of the board a snapshot holds, written and synced before this is called
+     * @throws IOException if the journal cannot be rewritten; the old one is still used then
+     */
+    void compact(long version) throws IOException {
+        synchronized (fileLock) {
+            long size = channel.size();
+            ByteBuffer kept = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE, size));
+            ByteBuffer header = ByteBuffer.allocate(GROUP_HEADER);
+            for (long position=HEADER; position<size; ) {
+                header.clear();
+                readFully(channel, header, position);
+                int length = header.getInt(0);
+                ByteBuffer records = ByteBuffer.allocate(length);
+                readFully(channel, records, position + GROUP_HEADER);
+                records.flip();
+                while (records.hasRemaining()) {
+                    int start = records.position();
+                    records.position(start + RECORD - 8);
+                    if (records.getLong() > version)
+                        kept.put(records.array(), start, RECORD);
+                }
+                position += GROUP_HEADER + length;
+            }
+            kept.flip();
+            CRC32 crc = new CRC32();
+            crc.update(kept.array(), 0, kept.limit());
+            ByteBuffer group = ByteBuffer.allocate(GROUP_HEADER);
+            group.putInt(kept.limit()).putInt((int) crc.getValue()).flip();
+            File temp = new File(file.getPath() + ".tmp");
+            FileChannel rewritten = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                if (kept.hasRemaining())
+                    writeFully(rewritten, header(side, fingerprint, version), group, kept);
+                else
+                    writeFully(rewritten, header(side, fingerprint, version));
+                rewritten.force(true);
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                rewritten.close();
+                throw e;
+            }
+            channel.close();
+            channel = rewritten;
+        }
+    }
+    
+    /**
+     * Appends a move. Called by Board with the move's locks held, so it only copies the move into memory.
+     * @param kind Board.MOVE_DIG, MOVE_FLAG or MOVE_DEFLAG
+     * @param location of the square the move was on
+     * @param version board version the move produced
+     */
+    void append(int kind, int x, int y, long version) {
+        long sequence;
+        synchronized (this) {
+            // Once the flusher has failed nothing is written any more, but awaitDurable still reports the failure
+            if (failure == null) {
+                if (buffer.remaining() < RECORD) {
+                    // Only grows while the disk falls behind; the buffers are reused afterwards
+                    ByteBuffer bigger = ByteBuffer.allocate(2 * buffer.capacity());
+                    buffer.flip();
+                    buffer = bigger.put(buffer);
+                }
+                buffer.put((byte) kind).putInt(x).putInt(y).putLong(version);
+            }
+            sequence = ++appended;
+            if (flusherIdle)
+                notify();
+        }
+        Pending pending = PENDING.get();
+        pending.journal = this;
+        pending.sequence = sequence;
+    }
+    
+    /**
+     * Waits until every move the calling thread appended to a journal is on disk. Returns at once if there are none.
+     * @throws IOException if the journal could not be written
+     */
+    public static void awaitDurable() throws IOException {
+        Pending pending = PENDING.get();
+        MoveJournal journal = pending.journal;
+        if (journal == null)
+            return;
+        pending.journal = null;
+        journal.await(pending.sequence);
+    }
+    
+    /**
+     * @param sequence number of moves that must be on disk
+     */
+    private void await(long sequence) throws IOException {
+        if (durable >= sequence)
+            return;
+        synchronized (durability) {
+            while (durable < sequence && failure == null) {
+                try {
+                    durability.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the journal");
+                }
+            }
+            if (durable < sequence)
+                throw new IOException("Journal write failed", failure);
+        }
+    }
+    
+    /**
+     * Body of the flusher thread: writes out and fsyncs whatever has been appended, one group at a time
+     */
+    private void flushLoop() {
+        ByteBuffer header = ByteBuffer.allocate(GROUP_HEADER);
+        CRC32 crc = new CRC32();
+        while (true) {
+            ByteBuffer group;
+            long sequence;
+            synchronized (this) {
+                while (buffer.position() == 0) {
+                    flusherIdle = true;
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    } finally {
+                        flusherIdle = false;
+                    }
+                }
+                group = buffer;
+                buffer = spare;
+                buffer.clear();
+                sequence = appended;
+            }
+            group.flip();
+            crc.reset();
+            crc.update(group.array(), 0, group.limit());
+            header.clear();
+            header.putInt(group.limit()).putInt((int) crc.getValue()).flip();
+            try {
+                synchronized (fileLock) {
+                    writeFully(channel, header, group);
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                synchronized (durability) {
+                    failure = e;
+                    durability.notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                spare = group;
+            }
+            synchronized (durability) {
+                durable = sequence;
+                durability.notifyAll();
+            }
+        }
+    }
+}
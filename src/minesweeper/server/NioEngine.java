@@ -0,0 +1,438 @@
+package minesweeper.server;
+
+/*
+ * This engine serves every connection from one selector thread plus a small pool of worker threads, instead of one
+ * thread per connection. The selector thread does all socket I/O: it accepts, reads bytes into each connection's
+ * CommandParser, and writes out whatever responses are queued. The workers parse the buffered requests and call
+ * handleRequest. The workers are the RoomRegistry's shard executors: a connection's requests run on the executor of
+ * the room it is in, so a busy room only delays the rooms that share its shard. A connection is scheduled on at most
+ * one worker at a time (the scheduled flag), so its requests are still handled one after another and answered in
+ * order, just like in handleConnection.
+ * 
+ * Clients may pipeline requests. A worker answers every request buffered for its connection and queues the answers
+ * together, so they go out in as few writes as the socket allows. If a client sends requests faster than they are
+ * answered, its parser fills up and the selector thread stops reading from it until the worker has caught up.
+ * Likewise, while more than its Outbox's limit of answers waits to be written to a client, its requests wait too,
+ * and a client that stays over the limit is dropped (see Outbox). The selector thread looks for such clients once
+ * a second, so they are dropped even if nothing more is queued for them.
+ * 
+ * The only state shared between the selector thread and the workers is each Connection's parser, response queue and
+ * flags, which are guarded by the Connection's monitor, and the queue of connections whose interest ops need
+ * updating, which is a concurrent queue. A BoardFeed's thread also queues pushed updates on subscribed connections,
+ * the same way a worker queues answers. Workers never touch the selector or the channels themselves; they queue the
+ * connection and wake the selector up, and the selector thread updates its interest ops.
+ */
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+class NioEngine {
+    /** Most answers a worker collects before queueing them, so a long pipeline does not wait for its last request. */
+    private static final int MAX_BATCH = 64;
+    /** Most queued responses handed to one gathering write. */
+    private static final int MAX_GATHER = 64;
+    /** How often the selector thread looks for clients that stay over their Outbox's limit. */
+    private static final long SWEEP_MILLIS = 1000;
+    
+    private final MinesweeperServer server;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final RoomRegistry rooms;
+    private final Queue<Connection> changed = new ConcurrentLinkedQueue<Connection>();
+    /** Responses being written by write; only used by the selector thread. */
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    
+    /**
+     * State of one client connection
+     */
+    private class Connection implements Runnable, BoardFeed.Subscriber {
+        final SocketChannel channel;
+        final Session session;
+        /** Only used by the worker handling the connection. */
+        final Command command = new Command();
+        // Guarded by this
+        final CommandParser parser = new CommandParser(MinesweeperServer.MAX_REQUEST);
+        final Outbox responses = server.newOutbox();
+        boolean scheduled = false;
+        boolean readPaused = false;
+        boolean closeAfterWrite = false;
+        boolean closed = false;
+        
+        Connection(SocketChannel channel, Room room) {
+            this.channel = channel;
+            this.session = new Session(room);
+            this.session.setSubscriber(this);
+        }
+        
+        /**
+         * Handles the buffered requests, on the executor of the connection's room. If a request moves the connection
+         * to a room on another executor, the rest of the requests are handed over to that executor.
+         */
+        @Override
+        public void run() {
+            ExecutorService executor = session.getRoom().getExecutor();
+            List<String> batch = new ArrayList<String>();
+            while (true) {
+                if (session.getRoom().getExecutor() != executor) {
+                    send(batch, false);
+                    session.getRoom().getExecutor().execute(this);
+                    return;
+                }
+                boolean stop;
+                boolean leave;
+                boolean resume = false;
+                synchronized (this) {
+                    // While too many answers wait to be written, the rest of the requests wait for write to reschedule
+                    boolean over = responses.isOver();
+                    stop = closeAfterWrite || closed || over || !parser.next(command);
+                    leave = closed;
+                    if (stop) {
+                        scheduled = false;
+                        if (!over) {
+                            // The parser has been drained, so the selector thread can read again
+                            resume = readPaused;
+                            readPaused = false;
+                        }
+                    }
+                }
+                if (leave) {
+                    // close ran while this worker could still move the connection, so it left the room to us
+                    session.unsubscribe();
+                    rooms.leave(session.getRoom());
+                }
+                if (stop) {
+                    if (!batch.isEmpty() || resume)
+                        send(batch, false);
+                    return;
+                }
+                String output = MinesweeperServer.handleRequest(command, session);
+                if (output == null)
+                    continue;
+                // Terminates connection for these two cases
+                if (output.equals("BOOM!\n") && !server.isDebug()) {
+                    batch.add(output);
+                    send(batch, true);
+                } else if (output.equals("bye")) {
+                    send(batch, true);
+                } else {
+                    batch.add(output);
+                    if (batch.size() == MAX_BATCH)
+                        send(batch, false);
+                    BoardFeed.Subscription subscription = session.getSubscription();
+                    if (subscription != null && !subscription.isLive()) {
+                        // Updates may only follow the answer to subscribe, which carries the version they continue from
+                        send(batch, false);
+                        subscription.activate();
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Queues responses and asks the selector thread to write them and update the connection's interest ops
+         * @param batch responses to write, emptied by this method
+         * @param close true to close the connection once everything queued has been written
+         */
+        void send(List<String> batch, boolean close) {
+            try {
+                // Answers must not reach the client before the moves they report are journaled
+                MoveJournal.awaitDurable();
+            } catch (IOException e) {
+                e.printStackTrace();
+                batch.clear();
+                close = true;
+            }
+            Board board = session.getRoom().getBoard();
+            int encoding = session.getEncoding();
+            // Encoded before taking the monitor, which the selector thread needs to write: deflating a large board
+            // message would hold it up. Board messages come out already encoded, shared with every connection
+            // sending the same version.
+            byte[][] encoded = new byte[batch.size()][];
+            int[] kinds = new int[batch.size()];
+            for (int i=0; i<encoded.length; i++) {
+                encoded[i] = board.encode(batch.get(i), encoding);
+                kinds[i] = board.coalescable(batch.get(i));
+            }
+            boolean slow = false;
+            synchronized (this) {
+                if (closed)
+                    return;
+                for (int i=0; i<encoded.length; i++) {
+                    Metrics.get().recordResponse(encoded[i].length);
+                    if (!responses.offer(encoded[i], board, kinds[i], encoding)) {
+                        slow = true;
+                        break;
+                    }
+                }
+                if (close)
+                    closeAfterWrite = true;
+            }
+            batch.clear();
+            if (slow) {
+                dropSlow(this);
+                return;
+            }
+            changed.add(this);
+            selector.wakeup();
+        }
+        
+        /**
+         * Queues an update pushed by a BoardFeed, called on the feed's thread
+         * @param update encoded update message
+         * @return false if the connection is closed or closing
+         */
+        @Override
+        public boolean push(byte[] update) {
+            boolean slow;
+            synchronized (this) {
+                if (closed || closeAfterWrite)
+                    return false;
+                slow = !responses.offer(update);
+            }
+            if (slow) {
+                dropSlow(this);
+                return false;
+            }
+            Metrics.get().recordResponse(update.length);
+            changed.add(this);
+            selector.wakeup();
+            return true;
+        }
+        
+        /**
+         * Called by the selector thread with the connection's monitor held
+         * @return the interest ops the connection needs
+         */
+        int interestOps() {
+            int ops = 0;
+            if (!readPaused && !closeAfterWrite)
+                ops |= SelectionKey.OP_READ;
+            if (!responses.isEmpty() || closeAfterWrite)
+                ops |= SelectionKey.OP_WRITE;
+            return ops;
+        }
+    }
+    
+    /**
+     * Make an engine serving the connections accepted on serverChannel
+     * @param server whose requests the engine handles
+     * @param serverChannel bound server channel
+     */
+    NioEngine(MinesweeperServer server, ServerSocketChannel serverChannel) throws IOException {
+        this.server = server;
+        this.serverChannel = serverChannel;
+        this.selector = Selector.open();
+        this.rooms = MinesweeperServer.rooms();
+    }
+    
+    /**
+     * Run the selector loop. Never returns unless an exception is thrown.
+     * @throws IOException if the selector or the server channel is broken
+     * (IOExceptions from individual clients only close that client).
+     */
+    void serve() throws IOException {
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        long sweep = System.nanoTime();
+        while (true) {
+            selector.select(SWEEP_MILLIS);
+            if (System.nanoTime() - sweep >= SWEEP_MILLIS * 1000000) {
+                sweep = System.nanoTime();
+                sweep();
+            }
+            for (Connection connection = changed.poll(); connection != null; connection = changed.poll()) {
+                SelectionKey key = connection.channel.keyFor(selector);
+                if (key != null && key.isValid()) {
+                    synchronized (connection) {
+                        key.interestOps(connection.interestOps());
+                    }
+                }
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid())
+                    continue;
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isReadable())
+                        read(connection, key);
+                    if (key.isValid() && key.isWritable())
+                        write(connection, key);
+                } catch (IOException e) {
+                    close(connection);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Accepts a pending connection, if any, and greets it
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel, rooms.getDefault());
+        channel.register(selector, SelectionKey.OP_READ, connection);
+        Metrics.get().connectionOpened();
+        List<String> welcome = new ArrayList<String>();
+        welcome.add(MinesweeperServer.welcome(rooms.enter(connection.session.getRoom())));
+        connection.send(welcome, false);
+    }
+    
+    /**
+     * Reads what the client sent into its parser and schedules the connection on a worker. Stops reading from the
+     * connection while its parser is full.
+     * @param connection to read from
+     * @param key of the connection
+     * @throws IOException if the connection has an error
+     */
+    private void read(Connection connection, SelectionKey key) throws IOException {
+        int n;
+        synchronized (connection) {
+            n = connection.parser.read(connection.channel);
+            if (n == 0 && !connection.parser.hasRoom()) {
+                connection.readPaused = true;
+                key.interestOps(connection.interestOps());
+            }
+        }
+        if (n < 0) {
+            close(connection);
+            return;
+        }
+        schedule(connection);
+    }
+    
+    /**
+     * Hands the connection to a worker unless one is already handling it
+     * @param connection with buffered requests
+     */
+    private void schedule(Connection connection) {
+        synchronized (connection) {
+            if (connection.scheduled || connection.closed)
+                return;
+            connection.scheduled = true;
+        }
+        connection.session.getRoom().getExecutor().execute(connection);
+    }
+    
+    /**
+     * Writes as much of the queued responses as the socket takes, and closes the connection if it asked to
+     * be closed and nothing is left to write. Queued responses go out together in gathering writes, straight
+     * from their (often shared) arrays, so pipelined answers and pushed updates cost one system call
+     * @param connection to write to
+     * @param key of the connection
+     * @throws IOException if the connection has an error
+     */
+    private void write(Connection connection, SelectionKey key) throws IOException {
+        boolean close;
+        boolean resume;
+        synchronized (connection) {
+            boolean over = connection.responses.isOver();
+            try {
+                while (!connection.responses.isEmpty()) {
+                    int n = connection.responses.take(gather);
+                    connection.channel.write(gather, 0, n);
+                    // The socket is full unless the write took every byte offered
+                    boolean full = gather[n-1].hasRemaining();
+                    Arrays.fill(gather, 0, n, null);
+                    connection.responses.written();
+                    if (full)
+                        break;
+                }
+            } finally {
+                resume = over && !connection.responses.isOver();
+            }
+            close = connection.closeAfterWrite && connection.responses.isEmpty();
+            if (!close && connection.responses.isEmpty())
+                key.interestOps(connection.interestOps());
+        }
+        // The worker stopped handling requests while the queue was over its limit
+        if (resume)
+            schedule(connection);
+        if (close)
+            close(connection);
+    }
+    
+    /**
+     * Drops the connections that stay over their Outbox's limit without anything more queued for them
+     */
+    private void sweep() {
+        for (SelectionKey key : selector.keys()) {
+            if (!(key.attachment() instanceof Connection))
+                continue;
+            Connection connection = (Connection) key.attachment();
+            boolean slow;
+            synchronized (connection) {
+                slow = connection.responses.isTooSlow();
+            }
+            if (slow)
+                dropSlow(connection);
+        }
+    }
+    
+    /**
+     * Closes a connection that stays over its Outbox's limit, dropping what is queued for it
+     * @param connection to drop
+     */
+    private void dropSlow(Connection connection) {
+        Metrics.get().slowClientDropped();
+        close(connection);
+    }
+    
+    /**
+     * Closes the connection and forgets about it. The connection leaves its room here unless a worker is handling
+     * it, since the worker may be moving it to another room; the worker then leaves the room when it sees the
+     * connection is closed.
+     * @param connection to close
+     */
+    private void close(Connection connection) {
+        boolean leave;
+        synchronized (connection) {
+            if (connection.closed)
+                return;
+            connection.closed = true;
+            connection.responses.clear();
+            leave = !connection.scheduled;
+        }
+        Metrics.get().connectionClosed();
+        if (leave) {
+            connection.session.unsubscribe();
+            rooms.leave(connection.session.getRoom());
+        }
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Opens a server channel listening on port
+     * @param port port number, requires 0 <= port <= 65535.
+     * @return bound server channel
+     */
+    static ServerSocketChannel open(int port) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        return channel;
+    }
+}
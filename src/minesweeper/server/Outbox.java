@@ -0,0 +1,180 @@
+package minesweeper.server;
+
+/*
+ * Bounded queue of the responses waiting to be written to one connection, so that a client that stops reading costs
+ * the server a bounded amount of memory however much it asks for or is pushed.
+ *
+ * Responses are queued as they are while the queue holds at most its limit (minesweeper.maxQueuedBytes, see
+ * MinesweeperServer). A response that takes the queue over that limit first coalesces it: every board message still
+ * waiting to be written is swapped for the latest board message the board has built, in the same form and encoding
+ * (see Board.coalescable). The client reads each of them after everything queued before it anyway, so it only sees
+ * a board that is at least as up to date. Coalescing never builds a board message itself, so it takes none of the
+ * board's locks while the engine holds the connection's. Board messages are shared per version (see Board.encode),
+ * so after coalescing they all hold one array between them, which is counted once. Board messages preceded by a
+ * version line are never swapped, since a delta client relies on the version it was told.
+ *
+ * A queue still over the limit after coalescing is over, and the engine stops handling the connection's requests
+ * until the client has read enough of it, so a client pipelining requests faster than it reads the answers is slowed
+ * down rather than dropped. A connection whose queue stays over the limit for longer than its grace
+ * (minesweeper.slowClientMillis), or grows past twice the limit, is too slow and the engine drops it.
+ *
+ * An Outbox is not threadsafe; the engine guards each connection's Outbox with a lock.
+ */
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+class Outbox {
+    /**
+     * One queued response
+     */
+    private static final class Entry {
+        ByteBuffer buffer;
+        /** Board whose current board message may replace the response, or null if it may not be replaced. */
+        final Board board;
+        /** Form and encoding of the board message, see Board.encodeLatest. */
+        final int kind;
+        final int encoding;
+        /** True once handed out by take, after which the response is being written and is not swapped. */
+        boolean taken;
+        /** Bytes of the response counted in queued; 0 if another response with the same array counts them. */
+        long counted;
+
+        Entry(byte[] bytes, Board board, int kind, int encoding) {
+            this.buffer = ByteBuffer.wrap(bytes);
+            this.board = board;
+            this.kind = kind;
+            this.encoding = encoding;
+            this.counted = bytes.length;
+        }
+    }
+
+    private final long limit;
+    private final long graceNanos;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+    /** Bytes of the queued responses not written yet. */
+    private long queued;
+    /** System.nanoTime() when the queue went over the limit; only meaningful while queued > limit. */
+    private long overSince;
+
+    /**
+     * @param limit most bytes queued before the queue is over
+     * @param graceNanos how long the queue may stay over before the connection is too slow
+     */
+    Outbox(long limit, long graceNanos) {
+        this.limit = limit;
+        this.graceNanos = graceNanos;
+    }
+
+    /**
+     * Queues a response that is not a board message, such as a pushed update
+     * @param bytes response to write; must not be changed
+     * @return false if the connection is too slow and must be dropped
+     */
+    boolean offer(byte[] bytes) {
+        return offer(bytes, null, -1, Board.PLAIN);
+    }
+
+    /**
+     * Queues a response
+     * @param bytes response to write, possibly shared with other connections; must not be changed
+     * @param board board the response answers about
+     * @param kind what board.coalescable said about the response, -1 if it may not be replaced
+     * @param encoding encoding the response was encoded with
+     * @return false if the connection is too slow and must be dropped
+     */
+    boolean offer(byte[] bytes, Board board, int kind, int encoding) {
+        boolean wasOver = isOver();
+        entries.add(new Entry(bytes, kind < 0 ? null : board, kind, encoding));
+        queued += bytes.length;
+        if (queued > limit)
+            coalesce();
+        if (!wasOver && isOver())
+            overSince = System.nanoTime();
+        return !isTooSlow();
+    }
+
+    /**
+     * Swaps every board message not being written yet for the latest one, and counts each array once
+     */
+    private void coalesce() {
+        Map<byte[], Boolean> seen = new IdentityHashMap<byte[], Boolean>();
+        queued = 0;
+        for (Entry entry : entries) {
+            if (entry.board != null && !entry.taken)
+                entry.buffer = ByteBuffer.wrap(entry.board.encodeLatest(entry.kind, entry.encoding));
+            entry.counted = seen.put(entry.buffer.array(), Boolean.TRUE) == null ? entry.buffer.remaining() : 0;
+            queued += entry.counted;
+        }
+    }
+
+    /**
+     * @return true if the queue holds more than the limit, so the connection's requests should wait
+     */
+    boolean isOver() {
+        return queued > limit;
+    }
+
+    /**
+     * @return true if the queue has been over the limit for too long, or holds more than twice the limit
+     */
+    boolean isTooSlow() {
+        return isOver() && (queued > 2*limit || System.nanoTime() - overSince >= graceNanos);
+    }
+
+    /**
+     * @return nanoseconds the queue may still stay over the limit, 0 if it is too slow, or graceNanos if not over
+     */
+    long graceLeft() {
+        if (!isOver())
+            return graceNanos;
+        if (isTooSlow())
+            return 0;
+        return Math.max(1, graceNanos - (System.nanoTime() - overSince));
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Hands out the next responses to write. They stay queued until written says they are done.
+     * @param into where to put them
+     * @return number of responses put into into, from index 0
+     */
+    int take(ByteBuffer[] into) {
+        int n = 0;
+        for (Entry entry : entries) {
+            entry.taken = true;
+            into[n++] = entry.buffer;
+            if (n == into.length)
+                break;
+        }
+        return n;
+    }
+
+    /**
+     * Drops the responses written completely, after bytes were written from those handed out by take
+     */
+    void written() {
+        while (!entries.isEmpty()) {
+            Entry head = entries.peek();
+            if (head.counted > 0) {
+                queued -= head.counted - head.buffer.remaining();
+                head.counted = head.buffer.remaining();
+            }
+            if (head.buffer.hasRemaining())
+                return;
+            entries.poll();
+        }
+    }
+
+    /**
+     * Drops every queued response
+     */
+    void clear() {
+        entries.clear();
+        queued = 0;
+    }
+}
@@ -0,0 +1,60 @@
+package minesweeper.server;
+
+/*
+ * A room is one game: a board and the people playing on it. The player count is only changed by RoomRegistry
+ * while holding the registry's lock, so that a room cannot be evicted while someone is joining it.
+ * lastUsed is volatile because every request touches it without taking a lock.
+ */
+import java.util.concurrent.ExecutorService;
+
+public class Room {
+    private final String name;
+    private final Board board;
+    /** Runs the room's requests in the nio engine, see RoomRegistry. */
+    private final ExecutorService executor;
+    private int players = 0;
+    private volatile long lastUsed = System.currentTimeMillis();
+    
+    Room(String name, Board board, ExecutorService executor) {
+        this.name = name;
+        this.board = board;
+        this.executor = executor;
+    }
+    
+    public String getName() {
+        return this.name;
+    }
+    
+    public Board getBoard() {
+        return this.board;
+    }
+    
+    /**
+     * @return the single-thread executor that runs the room's requests
+     */
+    ExecutorService getExecutor() {
+        return this.executor;
+    }
+    
+    /**
+     * @return number of connections currently in the room; only accurate while holding the registry's lock
+     */
+    int getPlayers() {
+        return this.players;
+    }
+    
+    void setPlayers(int players) {
+        this.players = players;
+    }
+    
+    /**
+     * Records that the room was just used, which keeps it from being evicted
+     */
+    public void touch() {
+        this.lastUsed = System.currentTimeMillis();
+    }
+    
+    long getLastUsed() {
+        return this.lastUsed;
+    }
+}
@@ -0,0 +1,181 @@
+package minesweeper.server;
+
+/*
+ * The registry is threadsafe because every method that reads or changes the rooms map or a room's player count is
+ * synchronized on the registry. Boards are threadsafe on their own, so rooms can be played in without going
+ * through the registry at all.
+ * 
+ * Rooms are spread over a fixed set of single-thread executors (shards) in the order they are created, so the nio
+ * engine can run each room's requests on its own shard: a room flooded with requests fills only its shard's queue
+ * and cannot starve rooms on the other shards. Each room keeps its executor, so finding it takes no lock. An
+ * executor only starts its thread when it is first given a request, so the thread-per-connection engine, which
+ * never gives it one, does not pay for them.
+ * 
+ * Rooms nobody is in are evicted once they have not been used for idleMillis, to bound memory. The default room is
+ * never evicted. For the same reason a registry holds at most maxRooms rooms (minesweeper.maxRooms, 100 by default),
+ * counting the default room.
+ */
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class RoomRegistry {
+    public static final String DEFAULT_ROOM = "default";
+    static final int MAX_ROOMS = Integer.getInteger("minesweeper.maxRooms", 100);
+    
+    private final Map<String, Room> rooms = new HashMap<String, Room>();
+    private final Room defaultRoom;
+    private final int shards;
+    private final long idleMillis;
+    private final int maxRooms;
+    private final ExecutorService[] executors;
+    /** Counts the rooms created, to pick each one's executor. */
+    private int created = 0;
+    
+    /**
+     * Make a registry holding only the default room
+     * @param board board of the default room
+     * @param shards number of executors rooms are spread over, requires shards > 0
+     * @param idleMillis how long an empty room is kept, or 0 to never evict rooms
+     */
+    public RoomRegistry(Board board, int shards, long idleMillis) {
+        this(board, shards, idleMillis, MAX_ROOMS);
+    }
+    
+    /**
+     * Make a registry holding only the default room
+     * @param board board of the default room
+     * @param shards number of executors rooms are spread over, requires shards > 0
+     * @param idleMillis how long an empty room is kept, or 0 to never evict rooms
+     * @param maxRooms most rooms held at once, including the default room
+     */
+    public RoomRegistry(Board board, int shards, long idleMillis, int maxRooms) {
+        this.shards = shards;
+        this.idleMillis = idleMillis;
+        this.maxRooms = maxRooms;
+        this.executors = new ExecutorService[shards];
+        for (int i=0; i<shards; i++) {
+            executors[i] = Executors.newSingleThreadExecutor(daemon("room-shard-" + i));
+        }
+        this.defaultRoom = new Room(DEFAULT_ROOM, board, executors[created++ % shards]);
+        rooms.put(DEFAULT_ROOM, defaultRoom);
+        if (idleMillis > 0) {
+            ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(daemon("room-evictor"));
+            evictor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    evictIdle();
+                }
+            }, idleMillis, idleMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * @return room every connection starts in
+     */
+    public Room getDefault() {
+        return this.defaultRoom;
+    }
+    
+    /**
+     * @param name of the room
+     * @return the room, or null if there is no room with that name
+     */
+    public synchronized Room get(String name) {
+        return rooms.get(name);
+    }
+    
+    /**
+     * Creates a room
+     * @param name of the room
+     * @param board board of the room
+     * @return the new room, or null if a room with that name already exists or the registry is full
+     */
+    public synchronized Room create(String name, Board board) {
+        if (rooms.containsKey(name) || isFull())
+            return null;
+        Room room = new Room(name, board, executors[created++ % shards]);
+        rooms.put(name, room);
+        return room;
+    }
+    
+    /**
+     * Counts a connection as playing in room
+     * @param room to enter
+     * @return number of people in the room, including the new one
+     */
+    public synchronized int enter(Room room) {
+        room.setPlayers(room.getPlayers() + 1);
+        room.touch();
+        return room.getPlayers();
+    }
+    
+    /**
+     * Moves a connection from one room to the room called name
+     * @param from room the connection is in
+     * @param name of the room to move to
+     * @return the room moved to, or null if there is no such room, in which case the connection stays in from
+     */
+    public synchronized Room move(Room from, String name) {
+        Room to = rooms.get(name);
+        if (to == null)
+            return null;
+        leave(from);
+        enter(to);
+        return to;
+    }
+    
+    /**
+     * Stops counting a connection as playing in room
+     * @param room to leave
+     */
+    public synchronized void leave(Room room) {
+        room.setPlayers(room.getPlayers() - 1);
+        room.touch();
+    }
+    
+    /**
+     * @return number of rooms, including the default room
+     */
+    public synchronized int size() {
+        return rooms.size();
+    }
+    
+    /**
+     * @return true if no more rooms can be created until some are evicted
+     */
+    public synchronized boolean isFull() {
+        return rooms.size() >= maxRooms;
+    }
+    
+    /**
+     * Removes every room other than the default room that is empty and has not been used for idleMillis
+     */
+    synchronized void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleMillis;
+        Iterator<Room> it = rooms.values().iterator();
+        while (it.hasNext()) {
+            Room room = it.next();
+            if (room != defaultRoom && room.getPlayers() == 0 && room.getLastUsed() < cutoff)
+                it.remove();
+        }
+    }
+    
+    /**
+     * @param name of the threads
+     * @return factory of daemon threads, so background work never keeps the server process alive on its own
+     */
+    static ThreadFactory daemon(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
@@ -0,0 +1,71 @@
+package minesweeper.server;
+
+/*
+ * Per-connection protocol state. A session is only used by one thread at a time (the thread serving its
+ * connection), so it needs no synchronization.
+ */
+public class Session {
+    /** True if dig, flag and deflag should answer with delta messages instead of the board message. */
+    private boolean delta = false;
+    /** How answers are encoded, Board.PLAIN, RLE or DEFLATE. */
+    private int encoding = Board.PLAIN;
+    /** Room the connection is playing in. */
+    private Room room;
+    /** Where pushed updates for the connection go, set by the engine; null if it cannot take them. */
+    private BoardFeed.Subscriber subscriber;
+    /** Subscription to the room's board, or null. */
+    private BoardFeed.Subscription subscription;
+    
+    public Session(Room room) {
+        this.room = room;
+    }
+    
+    public boolean isDelta() {
+        return this.delta;
+    }
+    
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+    
+    public int getEncoding() {
+        return this.encoding;
+    }
+    
+    public void setEncoding(int encoding) {
+        this.encoding = encoding;
+    }
+    
+    public Room getRoom() {
+        return this.room;
+    }
+    
+    public void setRoom(Room room) {
+        this.room = room;
+    }
+    
+    public BoardFeed.Subscriber getSubscriber() {
+        return this.subscriber;
+    }
+    
+    public void setSubscriber(BoardFeed.Subscriber subscriber) {
+        this.subscriber = subscriber;
+    }
+    
+    public BoardFeed.Subscription getSubscription() {
+        return this.subscription;
+    }
+    
+    public void setSubscription(BoardFeed.Subscription subscription) {
+        this.subscription = subscription;
+    }
+    
+    /**
+     * Ends the subscription, if any
+     */
+    public void unsubscribe() {
+        if (this.subscription != null)
+            this.subscription.cancel();
+        this.subscription = null;
+    }
+}